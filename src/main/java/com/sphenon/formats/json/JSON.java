@@ -24,7 +24,6 @@ import com.sphenon.basics.many.*;
 
 import com.sphenon.formats.json.returncodes.*;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
 public class JSON {
@@ -34,7 +33,7 @@ public class JSON {
             return null;
         }
         try {
-            return (new ObjectMapper()).writeValueAsString(json_object);
+            return JSONMapperRegistry.getWriter(context).writeValueAsString(json_object);
         } catch (JsonProcessingException jpe) {
             CustomaryContext.create((Context)context).throwPreConditionViolation(context, jpe, "Could not serialise JSON '%(object)'", "object", json_object);
             throw (ExceptionPreConditionViolation) null; // compiler insists
@@ -42,11 +41,21 @@ public class JSON {
     }
 
     static public Object fromString(CallContext context, String json_string) {
+        return fromString(context, json_string, JSONTreeBuilder.MapMode.HASH, false);
+    }
+
+    /**
+       Parses json_string directly into Maps, Lists and boxed values, see
+       JSONTreeBuilder for the meaning of map_mode and primitive_lists.
+       Returns null for null; empty or blank strings are a precondition
+       violation like any other invalid JSON.
+    */
+    static public Object fromString(CallContext context, String json_string, JSONTreeBuilder.MapMode map_mode, boolean primitive_lists) {
         if (json_string == null) {
             return null;
         }
         try {
-            return JSONNode.createJSONNode(context, json_string).toTree(context);
+            return new JSONTreeBuilder(context, map_mode, primitive_lists).build(context, json_string);
         } catch (InvalidJSON ij) {
             CustomaryContext.create((Context)context).throwPreConditionViolation(context, ij, "Could not parse JSON '%(json)'", "json", json_string);
             throw (ExceptionPreConditionViolation) null; // compiler insists
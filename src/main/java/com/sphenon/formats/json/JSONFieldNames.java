@@ -0,0 +1,171 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.encoding.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+   Field names as written by JSONSerialiserImpl, i.e. recoded according to
+   json-source-encoding and json-target-encoding, escaped, quoted and
+   followed by a colon, ready to be appended. There is one instance per combination of
+   encodings, which caches the names and the constant fragments used for
+   RichText.
+
+   Once a cache is full, further names are encoded on each use but not
+   cached, so the names cached first, typically the frequent ones, stay.
+
+   @configuration com.sphenon.formats.json.JSONFieldNames.CacheSize maximum number of cached names
+                                                                    per encoding combination (default 4096)
+*/
+public class JSONFieldNames {
+    static final public Class _class = JSONFieldNames.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected int cache_size = config.get(RootContext.getInitialisationContext(), "CacheSize", 4096);
+
+    static protected JSONFieldNames unrecoded;
+    static protected ConcurrentHashMap<String,JSONFieldNames> recoded = new ConcurrentHashMap<String,JSONFieldNames>();
+
+    /**
+       @param source_encoding name of the source encoding, or null
+       @param target_encoding name of the target encoding, or null
+       @return the field names for the given encodings; if both are null,
+               names are not recoded
+    */
+    static public JSONFieldNames get(CallContext context, String source_encoding, String target_encoding) {
+        if (source_encoding == null && target_encoding == null) {
+            JSONFieldNames field_names = unrecoded;
+            if (field_names == null) {
+                unrecoded = field_names = new JSONFieldNames(context, null, null);
+            }
+            return field_names;
+        }
+        if (source_encoding == null) { source_encoding = "UTF8"; }
+        if (target_encoding == null) { target_encoding = "UTF8"; }
+        String key = source_encoding + "->" + target_encoding;
+        JSONFieldNames field_names = recoded.get(key);
+        if (field_names == null) {
+            field_names = new JSONFieldNames(context, Encoding.getEncoding(context, source_encoding), Encoding.getEncoding(context, target_encoding));
+            JSONFieldNames existing = recoded.putIfAbsent(key, field_names);
+            if (existing != null) {
+                field_names = existing;
+            }
+        }
+        return field_names;
+    }
+
+    protected Encoding source_encoding;
+    protected Encoding target_encoding;
+
+    protected ConcurrentHashMap<String,String> names;
+    protected ConcurrentHashMap<String,byte[]> utf8_names;
+    protected boolean                          names_full;
+
+    protected String rich_text_prefix;
+    protected String rich_text_media_type;
+    protected String rich_text_suffix;
+
+    protected JSONFieldNames (CallContext context, Encoding source_encoding, Encoding target_encoding) {
+        this.source_encoding = source_encoding;
+        this.target_encoding = target_encoding;
+        this.names      = new ConcurrentHashMap<String,String>();
+        this.utf8_names = new ConcurrentHashMap<String,byte[]>();
+
+        this.rich_text_prefix     = "{" + this.get(context, "@Class") + "\"RichText\"," + this.get(context, "Text") + "\"";
+        this.rich_text_media_type = "\"," + this.get(context, "MediaType") + "\"";
+        this.rich_text_suffix     = "\"}";
+    }
+
+    public String recode(CallContext context, String string) {
+        return (this.source_encoding != null ? Encoding.recode(context, string, this.source_encoding, this.target_encoding) : string);
+    }
+
+    /**
+       @return the name in the form "name":
+    */
+    public String get(CallContext context, String name) {
+        String encoded = this.names.get(name);
+        if (encoded == null) {
+            String recoded = this.recode(context, name);
+            if (JSONStringEscaper.indexOfEscape(recoded) == -1) {
+                encoded = "\"" + recoded + "\":";
+            } else {
+                StringBuilder sb = new StringBuilder(recoded.length() + 8);
+                try {
+                    JSONStringEscaper.quote(sb, recoded);
+                } catch (java.io.IOException ioe) {
+                    // StringBuilder does not throw
+                }
+                encoded = sb.append(':').toString();
+            }
+            if (this.names.size() < cache_size) {
+                this.names.put(name, encoded);
+            } else if (this.names_full == false) {
+                this.names_full = true;
+                if ((notification_level & Notifier.DIAGNOSTICS) != 0) { CustomaryContext.create((Context)context).sendTrace(context, Notifier.DIAGNOSTICS, "JSON field name cache full (%(size) entries), no further names cached", "size", cache_size); }
+            }
+        }
+        return encoded;
+    }
+
+    /**
+       @return the name in the form "name": encoded as UTF-8, for JSONUTF8Sink
+    */
+    public byte[] getUTF8(CallContext context, String name) {
+        byte[] encoded = this.utf8_names.get(name);
+        if (encoded == null) {
+            encoded = this.get(context, name).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            if (this.utf8_names.size() < cache_size) {
+                this.utf8_names.put(name, encoded);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+       @return the beginning of a RichText object up to the opening quote of the text
+    */
+    public String getRichTextPrefix(CallContext context) {
+        return this.rich_text_prefix;
+    }
+
+    /**
+       @return the part between the text and the media type of a RichText object
+    */
+    public String getRichTextMediaType(CallContext context) {
+        return this.rich_text_media_type;
+    }
+
+    /**
+       @return the end of a RichText object following the media type
+    */
+    public String getRichTextSuffix(CallContext context) {
+        return this.rich_text_suffix;
+    }
+}
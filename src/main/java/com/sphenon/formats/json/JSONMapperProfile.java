@@ -0,0 +1,103 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.configuration.*;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+   A set of preconfigured Jackson instances for one parser feature profile.
+   All members are immutable resp. thread safe after construction and are
+   meant to be shared process wide, see JSONMapperRegistry.
+
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.<profile>.AllowComments           accept C and C++ style comments
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.<profile>.AllowYAMLComments       accept # comments
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.<profile>.AllowUnquotedFieldNames accept field names without quotes
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.<profile>.AllowSingleQuotes       accept single quoted strings and names
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.<profile>.AllowControlChars       accept unescaped control characters in strings
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.<profile>.AllowNonNumericNumbers  accept NaN and Infinity
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.<profile>.StrictDuplicates        reject objects with duplicate field names
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.<profile>.InternFieldNames        intern field names (default true)
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.<profile>.UseBigDecimal           read floating point numbers as BigDecimal
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.<profile>.Indent                  indent written JSON
+*/
+public class JSONMapperProfile {
+
+    protected String       name;
+    protected JsonFactory  factory;
+    protected ObjectMapper mapper;
+    protected ObjectReader tree_reader;
+    protected ObjectWriter writer;
+
+    public JSONMapperProfile (CallContext context, String name, Configuration config) {
+        this.name = name;
+
+        this.factory = new JsonFactory();
+        this.factory.configure(JsonParser.Feature.ALLOW_COMMENTS,                config.get(context, name + ".AllowComments", false));
+        this.factory.configure(JsonParser.Feature.ALLOW_YAML_COMMENTS,           config.get(context, name + ".AllowYAMLComments", false));
+        this.factory.configure(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES,    config.get(context, name + ".AllowUnquotedFieldNames", false));
+        this.factory.configure(JsonParser.Feature.ALLOW_SINGLE_QUOTES,           config.get(context, name + ".AllowSingleQuotes", false));
+        this.factory.configure(JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS,  config.get(context, name + ".AllowControlChars", false));
+        this.factory.configure(JsonParser.Feature.ALLOW_NON_NUMERIC_NUMBERS,     config.get(context, name + ".AllowNonNumericNumbers", false));
+        this.factory.configure(JsonParser.Feature.STRICT_DUPLICATE_DETECTION,    config.get(context, name + ".StrictDuplicates", false));
+        this.factory.configure(JsonFactory.Feature.INTERN_FIELD_NAMES,           config.get(context, name + ".InternFieldNames", true));
+
+        this.mapper = new ObjectMapper(this.factory);
+        this.mapper.configure(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS, config.get(context, name + ".UseBigDecimal", false));
+        this.mapper.configure(SerializationFeature.INDENT_OUTPUT,                 config.get(context, name + ".Indent", false));
+
+        this.tree_reader = this.mapper.reader(JsonNode.class);
+        this.writer      = this.mapper.writer();
+    }
+
+    public String getName(CallContext context) {
+        return this.name;
+    }
+
+    /**
+       The factory is shared, parsers and generators created from it must
+       not be configured individually in ways that affect the factory.
+    */
+    public JsonFactory getFactory(CallContext context) {
+        return this.factory;
+    }
+
+    /**
+       The mapper is shared and must not be reconfigured after
+       construction; use getTreeReader or getWriter with the 'with' methods
+       of ObjectReader/ObjectWriter to derive differently configured
+       instances.
+    */
+    public ObjectMapper getMapper(CallContext context) {
+        return this.mapper;
+    }
+
+    public ObjectReader getTreeReader(CallContext context) {
+        return this.tree_reader;
+    }
+
+    public ObjectWriter getWriter(CallContext context) {
+        return this.writer;
+    }
+}
@@ -0,0 +1,107 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+   Process wide registry of shared Jackson factories, mappers, readers and
+   writers. Creating an ObjectMapper is expensive (symbol tables, buffer
+   recyclers, serializer caches), therefore all of com.sphenon.formats.json
+   retrieves its instances from here instead of creating them per call.
+
+   Profiles are identified by name and configured on first access, see
+   JSONMapperProfile for the available properties. The profile "Default"
+   is used if no profile is given.
+
+   @configuration com.sphenon.formats.json.JSONMapperRegistry.DefaultProfile name of the profile used
+                                                                             if none is given explicitly
+*/
+public class JSONMapperRegistry {
+    static final public Class _class = JSONMapperRegistry.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected ConcurrentHashMap<String,JSONMapperProfile> profiles = new ConcurrentHashMap<String,JSONMapperProfile>();
+
+    static protected volatile JSONMapperProfile default_profile;
+
+    static public JSONMapperProfile getProfile(CallContext context) {
+        JSONMapperProfile profile = default_profile;
+        if (profile == null) {
+            profile = getProfile(context, config.get(context, "DefaultProfile", "Default"));
+            default_profile = profile;
+        }
+        return profile;
+    }
+
+    static public JSONMapperProfile getProfile(CallContext context, String name) {
+        if (name == null) {
+            return getProfile(context);
+        }
+        JSONMapperProfile profile = profiles.get(name);
+        if (profile == null) {
+            if ((notification_level & Notifier.DIAGNOSTICS) != 0) { CustomaryContext.create((Context)context).sendTrace(context, Notifier.DIAGNOSTICS, "Creating JSON mapper profile '%(name)'", "name", name); }
+            JSONMapperProfile created = new JSONMapperProfile(context, name, config);
+            profile = profiles.putIfAbsent(name, created);
+            if (profile == null) {
+                profile = created;
+            }
+        }
+        return profile;
+    }
+
+    /**
+       Registers a profile that has been set up programmatically, replacing
+       any existing profile with the same name.
+    */
+    static public void registerProfile(CallContext context, JSONMapperProfile profile) {
+        profiles.put(profile.getName(context), profile);
+        default_profile = null;
+    }
+
+    static public JsonFactory getFactory(CallContext context) {
+        return getProfile(context).getFactory(context);
+    }
+
+    static public ObjectMapper getMapper(CallContext context) {
+        return getProfile(context).getMapper(context);
+    }
+
+    static public ObjectReader getTreeReader(CallContext context) {
+        return getProfile(context).getTreeReader(context);
+    }
+
+    static public ObjectWriter getWriter(CallContext context) {
+        return getProfile(context).getWriter(context);
+    }
+}
@@ -15,6 +15,7 @@ package com.sphenon.formats.json;
 *****************************************************************************/
 
 import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
 import com.sphenon.basics.exception.*;
 import com.sphenon.basics.configuration.*;
 import com.sphenon.basics.message.*;
@@ -24,13 +25,20 @@ import com.sphenon.basics.many.*;
 
 import com.sphenon.formats.json.returncodes.*;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
 import java.util.*;
 import java.io.*;
 
+/**
+   @configuration com.sphenon.formats.json.JSONNode.MemoryMappingThresholdKB  regular files of at least this size are
+                                                                              read via memory mapping, -1 disables
+                                                                              memory mapping (default 1024)
+   @configuration com.sphenon.formats.json.JSONNode.MemoryMappingWindowSizeMB size of the windows large files are
+                                                                              mapped in (default 1024)
+*/
 public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
     static final public Class _class = JSONNode.class;
 
@@ -39,16 +47,103 @@ public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
     static public    long getNotificationLevel() { return notification_level; }
     static { notification_level = NotificationLocationContext.getLevel(_class); };
 
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected int mapping_threshold_kb   = config.get(RootContext.getInitialisationContext(), "MemoryMappingThresholdKB", 1024);
+    static protected int mapping_window_size_mb = config.get(RootContext.getInitialisationContext(), "MemoryMappingWindowSizeMB", 1024);
+
+    /*
+      The node set is held without any collection in the common cases:
+      empty sets have no first_node and no node_array, single node sets
+      just the first_node; only sets with more than one node use the
+      node_array, which is exactly sized and never modified after
+      construction. The Vectors returned by getJsonNodes and getNodes are
+      read only views created on demand, so they cannot diverge from the
+      node set.
+    */
+    static final protected JsonNode[] EMPTY_NODE_ARRAY = new JsonNode[0];
+
+    /**
+       A Vector whose content is fixed at construction; all modifications,
+       including those via iterators and sub lists, throw an
+       UnsupportedOperationException.
+    */
+    static protected class ReadOnlyVector<E> extends Vector<E> {
+        private static final long serialVersionUID = 1L;
+
+        protected ReadOnlyVector(Object[] elements, int count) {
+            super(0);
+            this.elementData  = java.util.Arrays.copyOf(elements, count, Object[].class);
+            this.elementCount = count;
+        }
+
+        protected UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException("node set of a JSONNode is read only");
+        }
+
+        public void    setSize(int new_size)                                   { throw readOnly(); }
+        public void    setElementAt(E object, int index)                       { throw readOnly(); }
+        public void    removeElementAt(int index)                              { throw readOnly(); }
+        public void    insertElementAt(E object, int index)                    { throw readOnly(); }
+        public void    addElement(E object)                                    { throw readOnly(); }
+        public boolean removeElement(Object object)                            { throw readOnly(); }
+        public void    removeAllElements()                                     { throw readOnly(); }
+        public E       set(int index, E element)                               { throw readOnly(); }
+        public boolean add(E element)                                          { throw readOnly(); }
+        public boolean remove(Object object)                                   { throw readOnly(); }
+        public void    add(int index, E element)                               { throw readOnly(); }
+        public E       remove(int index)                                       { throw readOnly(); }
+        public void    clear()                                                 { throw readOnly(); }
+        public boolean addAll(Collection<? extends E> collection)              { throw readOnly(); }
+        public boolean removeAll(Collection<?> collection)                     { throw readOnly(); }
+        public boolean retainAll(Collection<?> collection)                     { throw readOnly(); }
+        public boolean addAll(int index, Collection<? extends E> collection)   { throw readOnly(); }
+        protected void removeRange(int from_index, int to_index)               { throw readOnly(); }
+        public boolean removeIf(java.util.function.Predicate<? super E> filter) { throw readOnly(); }
+        public void    replaceAll(java.util.function.UnaryOperator<E> operator) { throw readOnly(); }
+        public void    sort(Comparator<? super E> comparator)                  { throw readOnly(); }
+    }
+
+    /**
+       Shared by all empty results, e.g. of getChild, getByPath and query;
+       it has no creation context and, being empty, no state to modify.
+    */
+    static final protected JSONNode EMPTY = new JSONNode((CallContext) null);
+
+    /**
+       @return the shared empty node set
+    */
+    static public JSONNode getEmpty(CallContext context) {
+        return EMPTY;
+    }
+
+    static protected JSONNode create(CallContext context, JsonNode node) {
+        return (node == null ? EMPTY : new JSONNode(context, node));
+    }
+
+    /**
+       @param nodes see JSONNode(CallContext, JsonNode[], int)
+    */
+    static protected JSONNode create(CallContext context, JsonNode[] nodes, int count) {
+        return (count == 0 ? EMPTY : new JSONNode(context, nodes, count));
+    }
+
     protected CallContext      creation_context;
-    protected Vector<JsonNode> nodes;
     protected JsonNode         first_node;
+    protected JsonNode[]       node_array;
+    protected int              node_count;
+    protected Vector<JsonNode> nodes_view;
     protected Vector<JSONNode> json_nodes;
     protected String           name;
 
     static protected JsonNode parseJSON(CallContext context, String json_string) throws InvalidJSON {
-        ObjectMapper mapper = new ObjectMapper();
+        return parseJSON(context, json_string, JSONMapperRegistry.getProfile(context));
+    }
+
+    static protected JsonNode parseJSON(CallContext context, String json_string, JSONMapperProfile profile) throws InvalidJSON {
         try {
-            return mapper.readTree(json_string);
+            return profile.getTreeReader(context).readTree(json_string);
         } catch (java.io.IOException ioe) {
             InvalidJSON.createAndThrow(context, ioe, "Cannot parse JSON '%(json_string)'", "json_string", json_string);
             throw (InvalidJSON) null; // compiler insists
@@ -56,42 +151,101 @@ public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
     }
 
     static protected JsonNode parseJSON(CallContext context, InputStream json_stream) throws InvalidJSON {
-        ObjectMapper mapper = new ObjectMapper();
+        return parseJSON(context, json_stream, JSONMapperRegistry.getProfile(context));
+    }
+
+    static protected JsonNode parseJSON(CallContext context, InputStream json_stream, JSONMapperProfile profile) throws InvalidJSON {
         try {
-            return mapper.readTree(json_stream);
+            return profile.getTreeReader(context).readTree(json_stream);
         } catch (java.io.IOException ioe) {
             InvalidJSON.createAndThrow(context, ioe, "Cannot parse JSON stream");
             throw (InvalidJSON) null; // compiler insists
         }
     }
 
-    static protected Vector<JsonNode> makeVector(JsonNode node) {
-        Vector<JsonNode> vector = new Vector<JsonNode>();
-        vector.add(node);
-        return vector;
-    }
-
     public JSONNode (CallContext context) {
-        this(context, (Vector<JsonNode>) null, null);
+        this.creation_context = context;
     }
 
     public JSONNode (CallContext context, JsonNode node) {
-        this(context, makeVector(node), null);
+        this(context, node, null);
     }
 
     public JSONNode (CallContext context, JsonNode node, String name) {
-        this(context, makeVector(node), name);
+        this.creation_context = context;
+        this.name = name;
+        if (node != null) {
+            this.first_node = node;
+            this.node_count = 1;
+        }
     }
 
     public JSONNode (CallContext context, Vector<JsonNode> nodes) {
         this(context, nodes, null);
     }
 
+    /**
+       @param nodes the nodes, which are copied; later modifications of the
+                    Vector do not affect the new JSONNode
+    */
     public JSONNode (CallContext context, Vector<JsonNode> nodes, String name) {
         this.creation_context = context;
-        this.nodes = nodes;
         this.name = name;
-        this.first_node = (this.nodes != null && this.nodes.size() >= 1 ? this.nodes.get(0) : null);
+        if (nodes != null && nodes.size() != 0) {
+            JsonNode[] copy = nodes.toArray(new JsonNode[nodes.size()]);
+            if (copy.length == 1) {
+                this.first_node = copy[0];
+                this.node_count = (this.first_node == null ? 0 : 1);
+            } else {
+                this.setNodes(copy, copy.length);
+            }
+        }
+    }
+
+    /**
+       @param nodes array which is taken over by the new JSONNode, it must not be
+                    modified afterwards; only the first count entries are used
+    */
+    protected JSONNode (CallContext context, JsonNode[] nodes, int count) {
+        this.creation_context = context;
+        this.setNodes(nodes, count);
+    }
+
+    protected void setNodes(JsonNode[] nodes, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (count == 1) {
+            this.first_node = nodes[0];
+            this.node_count = 1;
+            return;
+        }
+        if (nodes.length != count) {
+            JsonNode[] compact = new JsonNode[count];
+            System.arraycopy(nodes, 0, compact, 0, count);
+            nodes = compact;
+        }
+        this.node_array = nodes;
+        this.node_count = count;
+        this.first_node = nodes[0];
+    }
+
+    /**
+       Takes over the node set of another JSONNode.
+    */
+    protected void setNodes(JSONNode json_node) {
+        this.first_node = json_node.first_node;
+        this.node_array = json_node.node_array;
+        this.node_count = json_node.node_count;
+        this.nodes_view = json_node.nodes_view;
+    }
+
+    public int getNodeCount(CallContext context) {
+        return this.node_count;
+    }
+
+    public JsonNode getJsonNode(CallContext context, int index) {
+        return (this.node_array == null ? (index == 0 ? this.first_node : null) : this.node_array[index]);
     }
 
     // static public JSONNode createJSONNode(CallContext context, TreeLeaf tree_leaf) throws InvalidJSON {
@@ -107,8 +261,36 @@ public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
         return new JSONNode(context, parseJSON(context, json_string));
     }
 
+    static public JSONNode createJSONNode(CallContext context, String json_string, String profile) throws InvalidJSON {
+        return new JSONNode(context, parseJSON(context, json_string, JSONMapperRegistry.getProfile(context, profile)));
+    }
+
     static public JSONNode createJSONNode(CallContext context, InputStream input_stream) throws InvalidJSON {
-        JSONNode json_node = new JSONNode(context, parseJSON(context, input_stream));
+        return createJSONNode(context, input_stream, (String) null);
+    }
+
+    static public JSONNode createJSONNode(CallContext context, InputStream input_stream, String profile) throws InvalidJSON {
+        JSONNode json_node = new JSONNode(context, parseJSON(context, input_stream, JSONMapperRegistry.getProfile(context, profile)));
+        try {
+            input_stream.close();
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Could not close stream after parsing");
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+        return json_node;
+    }
+
+    /**
+       Parses only the parts of the stream that are on one of the given
+       paths, see JSONProjection.
+    */
+    static public JSONNode createJSONNode(CallContext context, InputStream input_stream, Set<String> paths) throws InvalidJSON {
+        return createJSONNode(context, input_stream, new JSONProjection(context, paths));
+    }
+
+    static public JSONNode createJSONNode(CallContext context, InputStream input_stream, JSONProjection projection) throws InvalidJSON {
+        JsonNode node = projection.parse(context, input_stream, JSONMapperRegistry.getProfile(context));
+        JSONNode json_node = new JSONNode(context, node);
         try {
             input_stream.close();
         } catch (IOException ioe) {
@@ -119,6 +301,19 @@ public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
     }
 
     static public JSONNode createJSONNode(CallContext context, File file) throws InvalidJSON {
+        if (mapping_threshold_kb >= 0 && file.isFile() && file.length() >= mapping_threshold_kb * 1024L) {
+            MappedFileInputStream mfis = null;
+            try {
+                mfis = new MappedFileInputStream(file, mapping_window_size_mb * 1024L * 1024L);
+            } catch (IOException ioe) {
+                // e.g. file systems which do not support mapping, fall back to streaming
+                if ((notification_level & Notifier.DIAGNOSTICS) != 0) { CustomaryContext.create((Context)context).sendTrace(context, Notifier.DIAGNOSTICS, "Could not map file '%(file)', reading as stream (%(reason))", "file", file.getPath(), "reason", ioe.getMessage()); }
+            }
+            if (mfis != null) {
+                return createJSONNode(context, mfis);
+            }
+        }
+
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(file);
@@ -136,18 +331,32 @@ public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
         return json_node;
     }
 
+    /**
+       @return a read only Vector with one JSONNode per node
+    */
     public Vector<JSONNode> getNodes(CallContext context) {
         if (this.json_nodes == null) {
-            this.json_nodes = new Vector<JSONNode>();
-            for (JsonNode node : this.nodes) {
-                this.json_nodes.add(new JSONNode(context, node));
+            JSONNode[] json_nodes = new JSONNode[this.node_count];
+            for (int n=0; n<this.node_count; n++) {
+                json_nodes[n] = new JSONNode(context, this.getJsonNode(context, n));
             }
+            this.json_nodes = new ReadOnlyVector<JSONNode>(json_nodes, json_nodes.length);
         }
         return this.json_nodes;
     }
 
+    /**
+       @return a read only Vector of the nodes
+    */
     public Vector<JsonNode> getJsonNodes(CallContext context) {
-        return this.nodes;
+        if (this.nodes_view == null) {
+            if (this.node_array != null) {
+                this.nodes_view = new ReadOnlyVector<JsonNode>(this.node_array, this.node_count);
+            } else {
+                this.nodes_view = new ReadOnlyVector<JsonNode>(this.node_count == 0 ? EMPTY_NODE_ARRAY : new JsonNode[] { this.first_node }, this.node_count);
+            }
+        }
+        return this.nodes_view;
     }
 
     public JsonNode getFirstNode(CallContext context) {
@@ -175,21 +384,17 @@ public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
     }
 
     public boolean isArray(CallContext context) {
-        if (this.nodes == null) { return false; }
-        for (JsonNode node : this.nodes) {
-            if (node.isArray()) {
+        for (int n=0; n<this.node_count; n++) {
+            if (this.getJsonNode(context, n).isArray()) {
                 return true;
             }
-            if (node.isObject()) {
-            }
         }
         return false;
     }
 
     public boolean isObject(CallContext context) {
-        if (this.nodes == null) { return false; }
-        for (JsonNode node : this.nodes) {
-            if (node.isObject()) {
+        for (int n=0; n<this.node_count; n++) {
+            if (this.getJsonNode(context, n).isObject()) {
                 return true;
             }
         }
@@ -228,20 +433,20 @@ public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
     }
 
     public Object toTree(CallContext context) {
-        if (this.nodes == null) { return null; }
-        if (this.nodes.size() == 0) { return null; }
-        if (this.nodes.size() == 1) { return this.toTree(context, this.nodes.get(0)); }
-        List l = new ArrayList();
-        for (JsonNode node : this.nodes) {
-            l.add(this.toTree(context, node));
+        int count = this.getNodeCount(context);
+        if (count == 0) { return null; }
+        if (count == 1) { return this.toTree(context, this.getJsonNode(context, 0)); }
+        List l = new ArrayList(count);
+        for (int n=0; n<count; n++) {
+            l.add(this.toTree(context, this.getJsonNode(context, n)));
         }
         return l;
     }
 
     public long getSize(CallContext context) {
-        if (this.nodes == null) { return 0; }
         long size = 0;
-        for (JsonNode node : this.nodes) {
+        for (int n=0; n<this.node_count; n++) {
+            JsonNode node = this.getJsonNode(context, n);
             if (node.isArray()) {
                 size += node.size();
             }
@@ -250,50 +455,70 @@ public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
     }
 
     public JSONNode getChild(CallContext context, long index) {
-        Vector<JsonNode> nodes = new Vector<JsonNode>();
-        if (this.nodes != null && (int) index == index) {
-            for (JsonNode node : this.nodes) {
-                if (node.isArray()) {
-                    JsonNode cjn = node.get((int) index);
-                    if (cjn != null) {
-                        nodes.add(cjn);
-                    }
+        if ((int) index != index) {
+            return EMPTY;
+        }
+        if (this.node_array == null) {
+            JsonNode node = this.first_node;
+            return create(context, node != null && node.isArray() ? node.get((int) index) : null);
+        }
+        JsonNode[] nodes = null;
+        int count = 0;
+        for (JsonNode node : this.node_array) {
+            if (node.isArray()) {
+                JsonNode cjn = node.get((int) index);
+                if (cjn != null) {
+                    if (nodes == null) { nodes = new JsonNode[this.node_count]; }
+                    nodes[count++] = cjn;
                 }
             }
         }
-        return new JSONNode(context, nodes);
+        return create(context, nodes, count);
     }
 
     public JSONNode getChild(CallContext context, String name) {
-        Vector<JsonNode> nodes = new Vector<JsonNode>();
-        Long index = null;
-        if (this.nodes != null) {
-            for (JsonNode node : this.nodes) {
-                if (node.isObject()) {
-                    JsonNode cjn = node.get(name);
-                    if (cjn != null) {
-                        nodes.add(cjn);
-                    }
-                } else if (    node.isArray()
-                            && (index = (index != null ? index : name.matches("[0-9]+") ? Long.parseLong(name) : null)) != null) {
-                    JsonNode cjn = node.get((int) (long) index);
-                    if (cjn != null) {
-                        nodes.add(cjn);
-                    }
-                }
+        if (this.node_array == null) {
+            JsonNode node = this.first_node;
+            return create(context, node == null ? null : JSONPathExpression.getChild(node, name));
+        }
+        JsonNode[] nodes = null;
+        int count = 0;
+        for (JsonNode node : this.node_array) {
+            JsonNode cjn = JSONPathExpression.getChild(node, name);
+            if (cjn != null) {
+                if (nodes == null) { nodes = new JsonNode[this.node_count]; }
+                nodes[count++] = cjn;
             }
         }
-        return new JSONNode(context, nodes);
+        return create(context, nodes, count);
     }
 
     public JSONNode getByPath(CallContext context, String path) {
         if (path == null || path.isEmpty()) { return this; }
-        int slashpos = path.indexOf("/");
-        if (slashpos == -1) {
-            return getChild(context, path);
-        } else {
-            return getChild(context, path.substring(0, slashpos)).getByPath(context, path.substring(slashpos+1));
-        }
+        return JSONPathExpression.get(context, path).evaluate(context, this);
+    }
+
+    public JSONNode getByPath(CallContext context, JSONPathExpression path) {
+        return path.evaluate(context, this);
+    }
+
+    /**
+       Evaluates a JSONPath style query, see JSONQuery for the syntax.
+    */
+    public JSONNode query(CallContext context, String query) {
+        return JSONQuery.get(context, query).evaluate(context, this, JSONQuery.UNLIMITED);
+    }
+
+    /**
+       Evaluates a JSONPath style query, see JSONQuery for the syntax,
+       and stops after limit matches have been found.
+    */
+    public JSONNode query(CallContext context, String query, int limit) {
+        return JSONQuery.get(context, query).evaluate(context, this, limit);
+    }
+
+    public JSONNode query(CallContext context, JSONQuery query, int limit) {
+        return query.evaluate(context, this, limit);
     }
 
     public String toString (CallContext context) {
@@ -348,9 +573,11 @@ public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
     // }
 
     public String toText (CallContext context) {
-        if (this.nodes == null) { return ""; }
+        if (this.node_count == 0) { return ""; }
+        if (this.node_count == 1 && this.first_node.isValueNode()) { return this.first_node.asText(); }
         StringBuilder sb = new StringBuilder();
-        for (JsonNode node : this.nodes) {
+        for (int n=0; n<this.node_count; n++) {
+            JsonNode node = this.getJsonNode(context, n);
             if (node.isValueNode()) {
                 sb.append(node.asText());
             } else {
@@ -619,12 +846,33 @@ public class JSONNode implements GenericIterable<JSONNode>, ContextAware {
     //     return new JSONNode(context, result_nodes);
     // }
 
+    /**
+       Iterates over the elements of the contained arrays and the member
+       values of the contained objects, see JSONNodeIterator; use getNodes
+       to iterate over the contained nodes themselves.
+    */
     public java.util.Iterator<JSONNode> getIterator (CallContext context) {
-        return null; // this.getNodes(context).iterator();
+        return new JSONNodeIterator(context, this);
+    }
+
+    public java.lang.Iterable<JSONNode> getIterable (final CallContext context) {
+        return new java.lang.Iterable<JSONNode>() {
+            public java.util.Iterator<JSONNode> iterator() {
+                return new JSONNodeIterator(context, JSONNode.this);
+            }
+        };
+    }
+
+    public java.util.Spliterator<JSONNode> getSpliterator (CallContext context) {
+        return new JSONNodeSpliterator(context, this);
+    }
+
+    public java.util.stream.Stream<JSONNode> stream (CallContext context) {
+        return java.util.stream.StreamSupport.stream(new JSONNodeSpliterator(context, this), false);
     }
 
-    public java.lang.Iterable<JSONNode> getIterable (CallContext context) {
-        return null; // this.getNodes(context);
+    public java.util.stream.Stream<JSONNode> parallelStream (CallContext context) {
+        return java.util.stream.StreamSupport.stream(new JSONNodeSpliterator(context, this), true);
     }
 
     // protected Element getSingleElement(CallContext context) {
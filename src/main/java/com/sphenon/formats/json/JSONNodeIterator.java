@@ -0,0 +1,86 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+   Iterates lazily over the elements of all arrays and the member values
+   of all objects contained in a JSONNode. Member values carry the member
+   name as their JSONNode name. Scalar values contain no elements and are
+   skipped.
+*/
+public class JSONNodeIterator implements Iterator<JSONNode> {
+
+    protected CallContext context;
+    protected JSONNode    json_node;
+    protected int         node_count;
+    protected int         node_index;
+
+    protected JsonNode                               array;
+    protected int                                    array_index;
+    protected Iterator<Map.Entry<String,JsonNode>>   fields;
+
+    public JSONNodeIterator (CallContext context, JSONNode json_node) {
+        this.context    = context;
+        this.json_node  = json_node;
+        this.node_count = json_node.getNodeCount(context);
+        this.node_index = 0;
+    }
+
+    public boolean hasNext() {
+        while (true) {
+            if (this.array != null) {
+                if (this.array_index < this.array.size()) { return true; }
+                this.array = null;
+            }
+            if (this.fields != null) {
+                if (this.fields.hasNext()) { return true; }
+                this.fields = null;
+            }
+            if (this.node_index >= this.node_count) {
+                return false;
+            }
+            JsonNode node = this.json_node.getJsonNode(this.context, this.node_index++);
+            if (node.isArray()) {
+                this.array = node;
+                this.array_index = 0;
+            } else if (node.isObject()) {
+                this.fields = node.fields();
+            }
+        }
+    }
+
+    public JSONNode next() {
+        if (this.hasNext() == false) {
+            throw new NoSuchElementException();
+        }
+        if (this.array != null) {
+            return new JSONNode(this.context, this.array.get(this.array_index++));
+        }
+        Map.Entry<String,JsonNode> entry = this.fields.next();
+        return new JSONNode(this.context, entry.getValue(), entry.getKey());
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("JSONNode content cannot be modified");
+    }
+}
@@ -0,0 +1,204 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.data.*;
+
+import com.sphenon.formats.json.returncodes.*;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Vector;
+
+/**
+   A JSONNode that keeps its source and parses it on first access of the
+   content. Nodes that are only passed through or checked for existence
+   never pay for parsing.
+
+   Parsing is thread safe and takes place at most once; if it fails, the
+   failure is reported as a precondition violation on every access.
+   Note that exists() does not parse, it is true as long as a source is
+   present.
+*/
+public class JSONNodeLazy extends JSONNode {
+
+    protected Object            source;
+    protected String            profile;
+    protected volatile boolean  parsed;
+    protected InvalidJSON       failure;
+
+    public JSONNodeLazy (CallContext context, byte[] source) {
+        this(context, (Object) source, null);
+    }
+
+    public JSONNodeLazy (CallContext context, File source) {
+        this(context, (Object) source, null);
+    }
+
+    public JSONNodeLazy (CallContext context, Data_MediaObject source) {
+        this(context, (Object) source, null);
+    }
+
+    protected JSONNodeLazy (CallContext context, Object source, String profile) {
+        super(context);
+        this.source  = source;
+        this.profile = profile;
+    }
+
+    public boolean isParsed(CallContext context) {
+        return this.parsed;
+    }
+
+    protected void parse(CallContext context) {
+        if (this.parsed) { return; }
+        synchronized (this) {
+            if (this.parsed == false) {
+                if ((notification_level & Notifier.DIAGNOSTICS) != 0) { CustomaryContext.create((Context)context).sendTrace(context, Notifier.DIAGNOSTICS, "Parsing lazy JSON node from '%(source)'", "source", this.getSourceInfo(context)); }
+                try {
+                    JSONNode parsed_node = this.parseSource(context);
+                    this.setNodes(parsed_node);
+                } catch (InvalidJSON ij) {
+                    this.failure = ij;
+                }
+                this.source = null;
+                this.parsed = true;
+            }
+        }
+        if (this.failure != null) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, this.failure, "Could not parse lazily loaded JSON");
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+    }
+
+    protected JSONNode parseSource(CallContext context) throws InvalidJSON {
+        if (this.source instanceof byte[]) {
+            return createJSONNode(context, new ByteArrayInputStream((byte[]) this.source), this.profile);
+        }
+        if (this.source instanceof File) {
+            return createJSONNode(context, (File) this.source);
+        }
+        if (this.source instanceof Data_MediaObject_File) {
+            return createJSONNode(context, (File) ((Data_MediaObject_File) this.source).getCurrentFile(context));
+        }
+        InputStream input_stream = ((Data_MediaObject) this.source).getStream(context);
+        return createJSONNode(context, input_stream, this.profile);
+    }
+
+    protected Object getSourceInfo(CallContext context) {
+        Object source = this.source;
+        return (source instanceof byte[] ? ("(" + ((byte[]) source).length + " bytes)") : source);
+    }
+
+    public boolean exists(CallContext context) {
+        return (this.parsed ? super.exists(context) : this.source != null);
+    }
+
+    public Vector<JSONNode> getNodes(CallContext context) {
+        this.parse(context);
+        return super.getNodes(context);
+    }
+
+    public int getNodeCount(CallContext context) {
+        this.parse(context);
+        return super.getNodeCount(context);
+    }
+
+    public JsonNode getJsonNode(CallContext context, int index) {
+        this.parse(context);
+        return super.getJsonNode(context, index);
+    }
+
+    public Vector<JsonNode> getJsonNodes(CallContext context) {
+        this.parse(context);
+        return super.getJsonNodes(context);
+    }
+
+    public JsonNode getFirstNode(CallContext context) {
+        this.parse(context);
+        return super.getFirstNode(context);
+    }
+
+    public String getName(CallContext context) {
+        this.parse(context);
+        return super.getName(context);
+    }
+
+    public String getAttribute(CallContext context, String name) {
+        this.parse(context);
+        return super.getAttribute(context, name);
+    }
+
+    public boolean isArray(CallContext context) {
+        this.parse(context);
+        return super.isArray(context);
+    }
+
+    public boolean isObject(CallContext context) {
+        this.parse(context);
+        return super.isObject(context);
+    }
+
+    public Object toTree(CallContext context) {
+        this.parse(context);
+        return super.toTree(context);
+    }
+
+    public long getSize(CallContext context) {
+        this.parse(context);
+        return super.getSize(context);
+    }
+
+    public JSONNode getChild(CallContext context, long index) {
+        this.parse(context);
+        return super.getChild(context, index);
+    }
+
+    public JSONNode getChild(CallContext context, String name) {
+        this.parse(context);
+        return super.getChild(context, name);
+    }
+
+    public String toString (CallContext context) {
+        this.parse(context);
+        return super.toString(context);
+    }
+
+    public String toString () {
+        this.parse(this.creation_context);
+        return super.toString();
+    }
+
+    public String toText (CallContext context) {
+        this.parse(context);
+        return super.toText(context);
+    }
+
+    public java.util.Iterator<JSONNode> getIterator (CallContext context) {
+        this.parse(context);
+        return super.getIterator(context);
+    }
+
+    public java.lang.Iterable<JSONNode> getIterable (CallContext context) {
+        this.parse(context);
+        return super.getIterable(context);
+    }
+}
@@ -0,0 +1,128 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+   Sized, splittable traversal of the same elements as JSONNodeIterator.
+
+   If the JSONNode consists of a single array, the array is accessed by
+   index directly. Otherwise the elements and member values are collected
+   once into plain arrays, which are then shared by all splits.
+*/
+public class JSONNodeSpliterator implements Spliterator<JSONNode> {
+
+    protected CallContext context;
+    protected JsonNode    array;
+    protected JsonNode[]  values;
+    protected String[]    names;
+    protected int         index;
+    protected int         fence;
+
+    public JSONNodeSpliterator (CallContext context, JSONNode json_node) {
+        this.context = context;
+        int count = json_node.getNodeCount(context);
+        if (count == 1 && json_node.getJsonNode(context, 0).isArray()) {
+            this.array = json_node.getJsonNode(context, 0);
+            this.fence = this.array.size();
+            return;
+        }
+
+        int size = 0;
+        for (int n=0; n<count; n++) {
+            JsonNode node = json_node.getJsonNode(context, n);
+            if (node.isContainerNode()) {
+                size += node.size();
+            }
+        }
+        this.values = new JsonNode[size];
+        int i = 0;
+        for (int n=0; n<count; n++) {
+            JsonNode node = json_node.getJsonNode(context, n);
+            if (node.isArray()) {
+                for (JsonNode element : node) {
+                    this.values[i++] = element;
+                }
+            } else if (node.isObject()) {
+                if (this.names == null) { this.names = new String[size]; }
+                Iterator<Map.Entry<String,JsonNode>> fields = node.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String,JsonNode> entry = fields.next();
+                    this.names[i]    = entry.getKey();
+                    this.values[i++] = entry.getValue();
+                }
+            }
+        }
+        this.fence = size;
+    }
+
+    protected JSONNodeSpliterator (CallContext context, JsonNode array, JsonNode[] values, String[] names, int index, int fence) {
+        this.context = context;
+        this.array   = array;
+        this.values  = values;
+        this.names   = names;
+        this.index   = index;
+        this.fence   = fence;
+    }
+
+    protected JSONNode get(int i) {
+        if (this.array != null) {
+            return new JSONNode(this.context, this.array.get(i));
+        }
+        return new JSONNode(this.context, this.values[i], this.names == null ? null : this.names[i]);
+    }
+
+    public boolean tryAdvance(Consumer<? super JSONNode> action) {
+        if (this.index >= this.fence) {
+            return false;
+        }
+        action.accept(this.get(this.index++));
+        return true;
+    }
+
+    public void forEachRemaining(Consumer<? super JSONNode> action) {
+        int fence = this.fence;
+        for (int i=this.index; i<fence; i++) {
+            action.accept(this.get(i));
+        }
+        this.index = fence;
+    }
+
+    public Spliterator<JSONNode> trySplit() {
+        int middle = (this.index + this.fence) >>> 1;
+        if (middle <= this.index) {
+            return null;
+        }
+        JSONNodeSpliterator prefix = new JSONNodeSpliterator(this.context, this.array, this.values, this.names, this.index, middle);
+        this.index = middle;
+        return prefix;
+    }
+
+    public long estimateSize() {
+        return this.fence - this.index;
+    }
+
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,207 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+   A slash separated path as accepted by JSONNode.getByPath, split once
+   into its segments. For each segment it is decided in advance whether it
+   can denote an array index, so evaluation needs neither substring
+   operations nor regular expressions nor intermediate JSONNodes.
+
+   Compiled expressions are immutable and kept in a bounded cache, use
+   JSONPathExpression.get to retrieve them. If the cache is full, the
+   least recently used expression is evicted.
+
+   @configuration com.sphenon.formats.json.JSONPathExpression.CacheSize maximum number of cached
+                                                                        expressions (default 1024)
+*/
+public class JSONPathExpression {
+    static final public Class _class = JSONPathExpression.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected int cache_size = config.get(RootContext.getInitialisationContext(), "CacheSize", 1024);
+
+    // access ordered, so the eldest entry is the least recently used
+    static protected LinkedHashMap<String,JSONPathExpression> cache = new LinkedHashMap<String,JSONPathExpression>(64, 0.75f, true);
+
+    static public JSONPathExpression get(CallContext context, String path) {
+        JSONPathExpression expression;
+        synchronized (cache) {
+            expression = cache.get(path);
+        }
+        if (expression == null) {
+            expression = new JSONPathExpression(context, path);
+            synchronized (cache) {
+                cache.put(path, expression);
+                if (cache.size() > cache_size) {
+                    Iterator<String> eldest = cache.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        return expression;
+    }
+
+    /**
+       Returns the array index denoted by name, or -1 if name is not
+       a sequence of decimal digits within integer range.
+    */
+    static public int parseIndex(String name) {
+        int length = name.length();
+        if (length == 0 || length > 10) { return -1; }
+        long index = 0;
+        for (int i=0; i<length; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') { return -1; }
+            index = index * 10 + (c - '0');
+        }
+        return index > Integer.MAX_VALUE ? -1 : (int) index;
+    }
+
+    protected String   path;
+    protected String[] names;
+    protected int[]    indices;
+
+    public JSONPathExpression (CallContext context, String path) {
+        this.path = path;
+
+        int count = 0;
+        if (path != null && path.isEmpty() == false) {
+            count = 1;
+            for (int i=0; i<path.length(); i++) {
+                if (path.charAt(i) == '/') { count++; }
+            }
+            // a single trailing slash does not denote an additional segment
+            if (path.charAt(path.length() - 1) == '/') { count--; }
+        }
+
+        this.names   = new String[count];
+        this.indices = new int[count];
+
+        int start = 0;
+        for (int s=0; s<count; s++) {
+            int end = path.indexOf('/', start);
+            if (end == -1) { end = path.length(); }
+            this.names[s]   = path.substring(start, end);
+            this.indices[s] = parseIndex(this.names[s]);
+            start = end + 1;
+        }
+    }
+
+    public String getPath(CallContext context) {
+        return this.path;
+    }
+
+    public int getSegmentCount(CallContext context) {
+        return this.names.length;
+    }
+
+    public String getSegmentName(CallContext context, int segment) {
+        return this.names[segment];
+    }
+
+    /**
+       @return the array index of the segment, or -1 if the segment can only
+               denote an object member
+    */
+    public int getSegmentIndex(CallContext context, int segment) {
+        return this.indices[segment];
+    }
+
+    static protected JsonNode getChild(JsonNode node, String name) {
+        if (node.isObject()) {
+            return node.get(name);
+        }
+        if (node.isArray()) {
+            int index = parseIndex(name);
+            return index == -1 ? null : node.get(index);
+        }
+        return null;
+    }
+
+    static protected JsonNode getChild(JsonNode node, String name, int index) {
+        if (node.isObject()) {
+            return node.get(name);
+        }
+        if (index != -1 && node.isArray()) {
+            return node.get(index);
+        }
+        return null;
+    }
+
+    /**
+       Evaluates the expression on a single Jackson node.
+
+       @return the resulting node, or null if the path does not exist
+    */
+    public JsonNode evaluate(CallContext context, JsonNode node) {
+        for (int s=0; node != null && s<this.names.length; s++) {
+            node = getChild(node, this.names[s], this.indices[s]);
+        }
+        return node;
+    }
+
+    public JSONNode evaluate(CallContext context, JSONNode json_node) {
+        if (this.names.length == 0) { return json_node; }
+
+        int size = json_node.getNodeCount(context);
+
+        if (size <= 1) {
+            return JSONNode.create(context, size == 0 ? null : this.evaluate(context, json_node.getJsonNode(context, 0)));
+        }
+
+        // each segment yields at most one child per node, so the
+        // set of current nodes can be narrowed in place
+        JsonNode[] current = new JsonNode[size];
+        for (int n=0; n<size; n++) {
+            current[n] = json_node.getJsonNode(context, n);
+        }
+        for (int s=0; size != 0 && s<this.names.length; s++) {
+            int count = 0;
+            for (int n=0; n<size; n++) {
+                JsonNode child = getChild(current[n], this.names[s], this.indices[s]);
+                if (child != null) {
+                    current[count++] = child;
+                }
+            }
+            size = count;
+        }
+
+        return JSONNode.create(context, current, size);
+    }
+
+    public String toString() {
+        return this.path;
+    }
+}
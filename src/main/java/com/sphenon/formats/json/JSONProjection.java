@@ -0,0 +1,273 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.formats.json.returncodes.*;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+   A set of paths to be retrieved from a JSON document while it is parsed.
+   The document is read as a token stream, subtrees that are not on any of
+   the paths are skipped without being materialised, and the resulting tree
+   contains only the requested values, at their original positions.
+   Array elements in front of a retrieved element are kept as null in the
+   result, so indices remain valid.
+
+   Paths are given in the syntax of JSONNode.getByPath, or as a JSONQuery
+   consisting of member, index and wildcard steps only.
+*/
+public class JSONProjection {
+
+    static protected class Node {
+        protected boolean            terminal;
+        protected Map<String,Node>   members;
+        protected Map<Integer,Node>  indices;
+        protected Node               wildcard;
+        protected int                max_index = -1;
+
+        protected Node getMember(String name) {
+            Node node = (this.members == null ? null : this.members.get(name));
+            return node != null ? node : this.wildcard;
+        }
+
+        protected Node getIndex(int index) {
+            Node node = (this.indices == null ? null : this.indices.get(index));
+            return node != null ? node : this.wildcard;
+        }
+
+        protected Node addMember(String name, Node node) {
+            if (this.members == null) { this.members = new HashMap<String,Node>(); }
+            Node existing = this.members.get(name);
+            if (existing != null) { return existing; }
+            if (node == null) { node = new Node(); }
+            this.members.put(name, node);
+            return node;
+        }
+
+        protected Node addIndex(int index, Node node) {
+            if (this.indices == null) { this.indices = new HashMap<Integer,Node>(); }
+            Node existing = this.indices.get(index);
+            if (existing != null) { return existing; }
+            if (node == null) { node = new Node(); }
+            this.indices.put(index, node);
+            if (index > this.max_index) { this.max_index = index; }
+            return node;
+        }
+
+        protected Node addWildcard() {
+            if (this.wildcard == null) { this.wildcard = new Node(); }
+            return this.wildcard;
+        }
+
+        /**
+           Adds all paths of source to this node.
+        */
+        protected void merge(Node source) {
+            if (source == null || source == this) { return; }
+            if (source.terminal) { this.terminal = true; }
+            if (source.members != null) {
+                for (Map.Entry<String,Node> entry : source.members.entrySet()) {
+                    this.addMember(entry.getKey(), null).merge(entry.getValue());
+                }
+            }
+            if (source.indices != null) {
+                for (Map.Entry<Integer,Node> entry : source.indices.entrySet()) {
+                    this.addIndex(entry.getKey(), null).merge(entry.getValue());
+                }
+            }
+            if (source.wildcard != null) {
+                this.addWildcard().merge(source.wildcard);
+            }
+        }
+
+        /**
+           Paths below a wildcard apply to explicitly named children as well,
+           so they are copied into them once the tree is complete.
+        */
+        protected void complete() {
+            if (this.members != null) {
+                for (Node child : this.members.values()) {
+                    child.merge(this.wildcard);
+                    child.complete();
+                }
+            }
+            if (this.indices != null) {
+                for (Node child : this.indices.values()) {
+                    child.merge(this.wildcard);
+                    child.complete();
+                }
+            }
+            if (this.wildcard != null) {
+                this.wildcard.complete();
+            }
+        }
+    }
+
+    protected Node root;
+
+    public JSONProjection (CallContext context, Collection<String> paths) {
+        this.root = new Node();
+        for (String path : paths) {
+            this.add(context, JSONPathExpression.get(context, path));
+        }
+        this.root.complete();
+    }
+
+    public JSONProjection (CallContext context, JSONPathExpression... paths) {
+        this.root = new Node();
+        for (JSONPathExpression path : paths) {
+            this.add(context, path);
+        }
+        this.root.complete();
+    }
+
+    public JSONProjection (CallContext context, JSONQuery... queries) {
+        this.root = new Node();
+        for (JSONQuery query : queries) {
+            this.add(context, query);
+        }
+        this.root.complete();
+    }
+
+    protected void add(CallContext context, JSONPathExpression path) {
+        this.add(context, this.root, path, 0);
+    }
+
+    protected void add(CallContext context, Node node, JSONPathExpression path, int segment) {
+        if (segment == path.getSegmentCount(context)) {
+            node.terminal = true;
+            return;
+        }
+        // a numeric segment denotes an object member as well as an array element
+        Node member = node.addMember(path.getSegmentName(context, segment), null);
+        this.add(context, member, path, segment + 1);
+        int index = path.getSegmentIndex(context, segment);
+        if (index != -1) {
+            Node element = node.addIndex(index, member);
+            if (element != member) {
+                this.add(context, element, path, segment + 1);
+            }
+        }
+    }
+
+    protected void add(CallContext context, JSONQuery query) {
+        Node node = this.root;
+        for (JSONQuery.Step step : query.steps) {
+            if (step instanceof JSONQuery.WildcardStep) {
+                node = node.addWildcard();
+            } else if (step instanceof JSONQuery.MemberStep && ((JSONQuery.MemberStep) step).names.length == 1) {
+                node = node.addMember(((JSONQuery.MemberStep) step).names[0], null);
+            } else if (    step instanceof JSONQuery.IndexStep
+                        && ((JSONQuery.IndexStep) step).indices.length == 1
+                        && ((JSONQuery.IndexStep) step).indices[0] >= 0) {
+                node = node.addIndex(((JSONQuery.IndexStep) step).indices[0], null);
+            } else {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "JSON query '%(query)' cannot be used for projection, only single member names, non negative indices and wildcards are supported", "query", query.getQuery(context));
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+        }
+        node.terminal = true;
+    }
+
+    /**
+       Reads one JSON value from the input stream.
+
+       @return the projected tree, or null if none of the paths exist
+    */
+    public JsonNode parse(CallContext context, InputStream input_stream, JSONMapperProfile profile) throws InvalidJSON {
+        ObjectMapper mapper = profile.getMapper(context);
+        try {
+            JsonParser parser = profile.getFactory(context).createParser(input_stream);
+            try {
+                if (parser.nextToken() == null) {
+                    return null;
+                }
+                return this.parseValue(parser, mapper, this.root);
+            } finally {
+                parser.close();
+            }
+        } catch (IOException ioe) {
+            InvalidJSON.createAndThrow(context, ioe, "Cannot parse JSON stream");
+            throw (InvalidJSON) null; // compiler insists
+        }
+    }
+
+    protected JsonNode parseValue(JsonParser parser, ObjectMapper mapper, Node node) throws IOException {
+        if (node.terminal) {
+            return mapper.readTree(parser);
+        }
+
+        JsonToken token = parser.getCurrentToken();
+
+        if (token == JsonToken.START_OBJECT) {
+            ObjectNode result = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                Node child = node.getMember(name);
+                if (child == null) {
+                    parser.skipChildren();
+                } else {
+                    JsonNode value = this.parseValue(parser, mapper, child);
+                    if (value != null) {
+                        if (result == null) { result = JsonNodeFactory.instance.objectNode(); }
+                        result.set(name, value);
+                    }
+                }
+            }
+            return result;
+        }
+
+        if (token == JsonToken.START_ARRAY) {
+            ArrayNode result = null;
+            int index = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                Node child = (node.wildcard == null && index > node.max_index ? null : node.getIndex(index));
+                if (child == null) {
+                    parser.skipChildren();
+                } else {
+                    JsonNode value = this.parseValue(parser, mapper, child);
+                    if (value != null) {
+                        if (result == null) { result = JsonNodeFactory.instance.arrayNode(); }
+                        while (result.size() < index) { result.addNull(); }
+                        result.add(value);
+                    }
+                }
+                index++;
+            }
+            return result;
+        }
+
+        // a scalar value cannot contain any further path
+        return null;
+    }
+}
@@ -0,0 +1,785 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+   A JSONPath style query, compiled into a sequence of steps which are
+   evaluated depth first over the Jackson tree. Evaluation stops as soon
+   as the requested number of results has been collected.
+
+   Supported syntax:
+   <pre>
+     $                  the root (optional)
+     .name  ['name']    member of an object, ['a','b'] selects several members
+     [n]                array element, negative indices count from the end, [1,3] selects several
+     [start:end:step]   array slice, all parts optional
+     .*  [*]            all elements of an array resp. all member values of an object
+     ..                 recursive descent, e.g. ..name or ..[0] or ..*
+     [?(expression)]    all elements resp. member values for which the expression holds
+   </pre>
+
+   Filter expressions refer to the element under test with '@' followed by
+   a relative path ('@.price', "@['first name']", '@[0]'), compare with
+   ==, !=, &lt;, &lt;=, &gt;, &gt;= against other paths or literals (numbers,
+   quoted strings, true, false, null), and combine with &amp;&amp;, || and !.
+   A path on its own tests for existence, and if the value is a boolean,
+   for true. A comparison involving a path that does not exist is always
+   false.
+
+   Compiled queries are immutable and kept in a bounded cache, use
+   JSONQuery.get to retrieve them. If the cache is full, the least
+   recently used query is evicted.
+
+   @configuration com.sphenon.formats.json.JSONQuery.CacheSize maximum number of cached queries (default 256)
+*/
+public class JSONQuery {
+    static final public Class _class = JSONQuery.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected int cache_size = config.get(RootContext.getInitialisationContext(), "CacheSize", 256);
+
+    // access ordered, so the eldest entry is the least recently used
+    static protected LinkedHashMap<String,JSONQuery> cache = new LinkedHashMap<String,JSONQuery>(64, 0.75f, true);
+
+    static public JSONQuery get(CallContext context, String query) {
+        JSONQuery compiled;
+        synchronized (cache) {
+            compiled = cache.get(query);
+        }
+        if (compiled == null) {
+            compiled = new JSONQuery(context, query);
+            synchronized (cache) {
+                cache.put(query, compiled);
+                if (cache.size() > cache_size) {
+                    Iterator<String> eldest = cache.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        return compiled;
+    }
+
+    static final public int UNLIMITED = Integer.MAX_VALUE;
+
+    protected String query;
+    protected Step[] steps;
+
+    public JSONQuery (CallContext context, String query) {
+        this.query = query;
+        this.steps = new Parser(context, query).parseQuery();
+    }
+
+    public String getQuery(CallContext context) {
+        return this.query;
+    }
+
+    public String toString() {
+        return this.query;
+    }
+
+    /**
+       Evaluates the query on all nodes of json_node.
+
+       @param limit maximum number of results, UNLIMITED for all
+    */
+    public JSONNode evaluate(CallContext context, JSONNode json_node, int limit) {
+        Collector collector = new Collector(limit);
+        int count = json_node.getNodeCount(context);
+        for (int n=0; n<count; n++) {
+            if (this.proceed(json_node.getJsonNode(context, n), 0, collector) == false) {
+                break;
+            }
+        }
+        return JSONNode.create(context, collector.results, collector.count);
+    }
+
+    public JSONNode evaluate(CallContext context, JSONNode json_node) {
+        return this.evaluate(context, json_node, UNLIMITED);
+    }
+
+    /**
+       Evaluates the query on a single Jackson node.
+    */
+    public List<JsonNode> evaluate(CallContext context, JsonNode node, int limit) {
+        Collector collector = new Collector(limit);
+        if (node != null) {
+            this.proceed(node, 0, collector);
+        }
+        return Arrays.asList(collector.results).subList(0, collector.count);
+    }
+
+    /**
+       @return the first match in document order, or null if there is none
+    */
+    public JsonNode evaluateFirst(CallContext context, JsonNode node) {
+        List<JsonNode> results = this.evaluate(context, node, 1);
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    public boolean matches(CallContext context, JsonNode node) {
+        return this.evaluateFirst(context, node) != null;
+    }
+
+    protected boolean proceed(JsonNode node, int position, Collector collector) {
+        if (position == this.steps.length) {
+            return collector.add(node);
+        }
+        return this.steps[position].evaluate(this, node, position, collector);
+    }
+
+    static protected class Collector {
+        protected JsonNode[] results;
+        protected int        count;
+        protected int        limit;
+
+        protected Collector(int limit) {
+            this.results = new JsonNode[limit < 8 ? (limit < 0 ? 0 : limit) : 8];
+            this.count   = 0;
+            this.limit   = limit;
+        }
+
+        /**
+           @return false if no more results are wanted
+        */
+        protected boolean add(JsonNode node) {
+            if (this.count < this.limit) {
+                if (this.count == this.results.length) {
+                    this.results = Arrays.copyOf(this.results, this.count * 2);
+                }
+                this.results[this.count++] = node;
+            }
+            return this.count < this.limit;
+        }
+    }
+
+    // ---- evaluation plan ------------------------------------------------------------
+
+    static abstract protected class Step {
+        /**
+           Selects from node and continues with position + 1 for each
+           selected node.
+
+           @return false if evaluation is to be terminated
+        */
+        abstract protected boolean evaluate(JSONQuery query, JsonNode node, int position, Collector collector);
+    }
+
+    static protected class MemberStep extends Step {
+        protected String[] names;
+
+        protected MemberStep(String... names) {
+            this.names = names;
+        }
+
+        protected boolean evaluate(JSONQuery query, JsonNode node, int position, Collector collector) {
+            if (node.isObject()) {
+                for (String name : this.names) {
+                    JsonNode child = node.get(name);
+                    if (child != null && query.proceed(child, position + 1, collector) == false) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    static protected class IndexStep extends Step {
+        protected int[] indices;
+
+        protected IndexStep(int... indices) {
+            this.indices = indices;
+        }
+
+        protected boolean evaluate(JSONQuery query, JsonNode node, int position, Collector collector) {
+            if (node.isArray()) {
+                int size = node.size();
+                for (int index : this.indices) {
+                    if (index < 0) { index += size; }
+                    if (index >= 0 && index < size) {
+                        if (query.proceed(node.get(index), position + 1, collector) == false) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    static protected class SliceStep extends Step {
+        protected Integer start;
+        protected Integer end;
+        protected int     step;
+
+        protected SliceStep(Integer start, Integer end, int step) {
+            this.start = start;
+            this.end   = end;
+            this.step  = step;
+        }
+
+        static protected int bound(Integer value, int size, int default_value, int lower, int upper) {
+            if (value == null) { return default_value; }
+            int bound = value < 0 ? value + size : value;
+            return bound < lower ? lower : bound > upper ? upper : bound;
+        }
+
+        protected boolean evaluate(JSONQuery query, JsonNode node, int position, Collector collector) {
+            if (node.isArray()) {
+                int size = node.size();
+                if (this.step > 0) {
+                    int from = bound(this.start, size, 0, 0, size);
+                    int to   = bound(this.end, size, size, 0, size);
+                    for (int i=from; i<to; i+=this.step) {
+                        if (query.proceed(node.get(i), position + 1, collector) == false) {
+                            return false;
+                        }
+                    }
+                } else {
+                    int from = bound(this.start, size, size - 1, -1, size - 1);
+                    int to   = bound(this.end, size, -1, -1, size - 1);
+                    for (int i=from; i>to; i+=this.step) {
+                        if (query.proceed(node.get(i), position + 1, collector) == false) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    static protected class WildcardStep extends Step {
+        protected boolean evaluate(JSONQuery query, JsonNode node, int position, Collector collector) {
+            if (node.isContainerNode()) {
+                for (JsonNode child : node) {
+                    if (query.proceed(child, position + 1, collector) == false) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+       Continues with the node itself and all of its descendants, in
+       document order.
+    */
+    static protected class DescendantStep extends Step {
+        protected boolean evaluate(JSONQuery query, JsonNode node, int position, Collector collector) {
+            if (query.proceed(node, position + 1, collector) == false) {
+                return false;
+            }
+            if (node.isContainerNode()) {
+                for (JsonNode child : node) {
+                    if (this.evaluate(query, child, position, collector) == false) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    static protected class FilterStep extends Step {
+        protected Predicate predicate;
+
+        protected FilterStep(Predicate predicate) {
+            this.predicate = predicate;
+        }
+
+        protected boolean evaluate(JSONQuery query, JsonNode node, int position, Collector collector) {
+            if (node.isContainerNode()) {
+                for (JsonNode child : node) {
+                    if (this.predicate.test(child) && query.proceed(child, position + 1, collector) == false) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    // ---- filter expressions ---------------------------------------------------------
+
+    static abstract protected class Predicate {
+        abstract protected boolean test(JsonNode node);
+    }
+
+    static protected class Or extends Predicate {
+        protected Predicate left, right;
+        protected Or(Predicate left, Predicate right) { this.left = left; this.right = right; }
+        protected boolean test(JsonNode node) { return this.left.test(node) || this.right.test(node); }
+    }
+
+    static protected class And extends Predicate {
+        protected Predicate left, right;
+        protected And(Predicate left, Predicate right) { this.left = left; this.right = right; }
+        protected boolean test(JsonNode node) { return this.left.test(node) && this.right.test(node); }
+    }
+
+    static protected class Not extends Predicate {
+        protected Predicate operand;
+        protected Not(Predicate operand) { this.operand = operand; }
+        protected boolean test(JsonNode node) { return this.operand.test(node) == false; }
+    }
+
+    static protected class Exists extends Predicate {
+        protected Operand operand;
+        protected Exists(Operand operand) { this.operand = operand; }
+        protected boolean test(JsonNode node) {
+            JsonNode value = this.operand.resolve(node);
+            return value != null && (value.isBoolean() == false || value.booleanValue());
+        }
+    }
+
+    static final protected int EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+
+    static final protected int UNORDERED = Integer.MIN_VALUE;
+
+    static protected class Comparison extends Predicate {
+        protected Operand left, right;
+        protected int     operator;
+
+        protected Comparison(Operand left, int operator, Operand right) {
+            this.left     = left;
+            this.operator = operator;
+            this.right    = right;
+        }
+
+        static protected int compare(JsonNode a, JsonNode b) {
+            if (a.isNumber() && b.isNumber()) {
+                if (a.isIntegralNumber() && b.isIntegralNumber() && a.canConvertToLong() && b.canConvertToLong()) {
+                    long la = a.longValue(), lb = b.longValue();
+                    return la < lb ? -1 : la > lb ? 1 : 0;
+                }
+                return Double.compare(a.doubleValue(), b.doubleValue());
+            }
+            if (a.isTextual() && b.isTextual()) {
+                return a.textValue().compareTo(b.textValue());
+            }
+            if (a.isBoolean() && b.isBoolean()) {
+                return a.booleanValue() == b.booleanValue() ? 0 : UNORDERED;
+            }
+            if (a.isNull() && b.isNull()) {
+                return 0;
+            }
+            return UNORDERED;
+        }
+
+        protected boolean test(JsonNode node) {
+            JsonNode a = this.left.resolve(node);
+            if (a == null) { return false; }
+            JsonNode b = this.right.resolve(node);
+            if (b == null) { return false; }
+            int result = compare(a, b);
+            switch (this.operator) {
+                case EQ: return result == 0;
+                case NE: return result != 0;
+                case LT: return result != UNORDERED && result <  0;
+                case LE: return result != UNORDERED && result <= 0;
+                case GT: return result != UNORDERED && result >  0;
+                case GE: return result != UNORDERED && result >= 0;
+            }
+            return false;
+        }
+    }
+
+    static abstract protected class Operand {
+        /**
+           @return the value, or null if it does not exist
+        */
+        abstract protected JsonNode resolve(JsonNode node);
+    }
+
+    static protected class Literal extends Operand {
+        protected JsonNode value;
+        protected Literal(JsonNode value) { this.value = value; }
+        protected JsonNode resolve(JsonNode node) { return this.value; }
+    }
+
+    static protected class RelativePath extends Operand {
+        protected String[] names;    // null for index segments
+        protected int[]    indices;
+
+        protected RelativePath(String[] names, int[] indices) {
+            this.names   = names;
+            this.indices = indices;
+        }
+
+        protected JsonNode resolve(JsonNode node) {
+            for (int s=0; node != null && s<this.names.length; s++) {
+                if (this.names[s] != null) {
+                    node = node.isObject() ? node.get(this.names[s]) : null;
+                } else if (node.isArray()) {
+                    int index = this.indices[s] < 0 ? this.indices[s] + node.size() : this.indices[s];
+                    node = index >= 0 ? node.get(index) : null;
+                } else {
+                    node = null;
+                }
+            }
+            return node;
+        }
+    }
+
+    // ---- parser ---------------------------------------------------------------------
+
+    static protected class Parser {
+        protected CallContext context;
+        protected String      query;
+        protected int         pos;
+
+        protected Parser(CallContext context, String query) {
+            this.context = context;
+            this.query   = query == null ? "" : query;
+            this.pos     = 0;
+        }
+
+        protected RuntimeException error(String reason) {
+            CustomaryContext.create((Context)context).throwConfigurationError(context, "Could not compile JSON query '%(query)' at position %(position): %(reason)", "query", this.query, "position", this.pos, "reason", reason);
+            throw (ExceptionConfigurationError) null; // compiler insists
+        }
+
+        protected boolean atEnd() {
+            return this.pos >= this.query.length();
+        }
+
+        protected char peek() {
+            return this.atEnd() ? '\0' : this.query.charAt(this.pos);
+        }
+
+        protected boolean lookingAt(String token) {
+            return this.query.startsWith(token, this.pos);
+        }
+
+        protected void skipWhitespace() {
+            while (this.atEnd() == false && Character.isWhitespace(this.peek())) { this.pos++; }
+        }
+
+        protected void expect(char c) {
+            this.skipWhitespace();
+            if (this.peek() != c) {
+                throw this.error("expected '" + c + "'");
+            }
+            this.pos++;
+        }
+
+        protected Step[] parseQuery() {
+            List<Step> steps = new ArrayList<Step>();
+            if (this.peek() == '$') {
+                this.pos++;
+            } else if (this.atEnd() == false && this.peek() != '.' && this.peek() != '[') {
+                steps.add(this.parseDotSelector());
+            }
+            while (this.atEnd() == false) {
+                if (this.lookingAt("..")) {
+                    this.pos += 2;
+                    steps.add(new DescendantStep());
+                    steps.add(this.peek() == '[' ? this.parseBracket() : this.parseDotSelector());
+                } else if (this.peek() == '.') {
+                    this.pos++;
+                    steps.add(this.parseDotSelector());
+                } else if (this.peek() == '[') {
+                    steps.add(this.parseBracket());
+                } else {
+                    throw this.error("unexpected character '" + this.peek() + "'");
+                }
+            }
+            return steps.toArray(new Step[steps.size()]);
+        }
+
+        protected Step parseDotSelector() {
+            if (this.peek() == '*') {
+                this.pos++;
+                return new WildcardStep();
+            }
+            int start = this.pos;
+            while (this.atEnd() == false && this.peek() != '.' && this.peek() != '[') { this.pos++; }
+            if (start == this.pos) {
+                throw this.error("member name expected");
+            }
+            return new MemberStep(this.query.substring(start, this.pos));
+        }
+
+        protected Step parseBracket() {
+            this.expect('[');
+            this.skipWhitespace();
+            Step step;
+            if (this.peek() == '*') {
+                this.pos++;
+                step = new WildcardStep();
+            } else if (this.peek() == '?') {
+                this.pos++;
+                this.expect('(');
+                Predicate predicate = this.parseOr();
+                this.expect(')');
+                step = new FilterStep(predicate);
+            } else if (this.peek() == '\'' || this.peek() == '"') {
+                List<String> names = new ArrayList<String>();
+                names.add(this.parseString());
+                this.skipWhitespace();
+                while (this.peek() == ',') {
+                    this.pos++;
+                    this.skipWhitespace();
+                    if (this.peek() != '\'' && this.peek() != '"') {
+                        throw this.error("quoted name expected");
+                    }
+                    names.add(this.parseString());
+                    this.skipWhitespace();
+                }
+                step = new MemberStep(names.toArray(new String[names.size()]));
+            } else {
+                Integer first = this.parseOptionalInteger();
+                this.skipWhitespace();
+                if (this.peek() == ':') {
+                    this.pos++;
+                    Integer end = this.parseOptionalInteger();
+                    Integer increment = null;
+                    this.skipWhitespace();
+                    if (this.peek() == ':') {
+                        this.pos++;
+                        increment = this.parseOptionalInteger();
+                    }
+                    if (increment != null && increment == 0) {
+                        throw this.error("slice step must not be 0");
+                    }
+                    step = new SliceStep(first, end, increment == null ? 1 : increment);
+                } else {
+                    if (first == null) {
+                        throw this.error("index, slice, name, '*' or filter expected");
+                    }
+                    List<Integer> indices = new ArrayList<Integer>();
+                    indices.add(first);
+                    while (this.peek() == ',') {
+                        this.pos++;
+                        Integer index = this.parseOptionalInteger();
+                        if (index == null) {
+                            throw this.error("index expected");
+                        }
+                        indices.add(index);
+                        this.skipWhitespace();
+                    }
+                    int[] array = new int[indices.size()];
+                    for (int i=0; i<array.length; i++) { array[i] = indices.get(i); }
+                    step = new IndexStep(array);
+                }
+            }
+            this.expect(']');
+            return step;
+        }
+
+        protected Integer parseOptionalInteger() {
+            this.skipWhitespace();
+            int start = this.pos;
+            if (this.peek() == '-') { this.pos++; }
+            while (this.atEnd() == false && this.peek() >= '0' && this.peek() <= '9') { this.pos++; }
+            if (start == this.pos) { return null; }
+            try {
+                return Integer.valueOf(this.query.substring(start, this.pos));
+            } catch (NumberFormatException nfe) {
+                throw this.error("invalid integer");
+            }
+        }
+
+        protected String parseString() {
+            char quote = this.peek();
+            this.pos++;
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (this.atEnd()) {
+                    throw this.error("unterminated string");
+                }
+                char c = this.query.charAt(this.pos++);
+                if (c == quote) {
+                    return sb.toString();
+                }
+                if (c == '\\') {
+                    if (this.atEnd()) {
+                        throw this.error("unterminated string");
+                    }
+                    c = this.query.charAt(this.pos++);
+                    switch (c) {
+                        case 'n': c = '\n'; break;
+                        case 't': c = '\t'; break;
+                        case 'r': c = '\r'; break;
+                        case 'b': c = '\b'; break;
+                        case 'f': c = '\f'; break;
+                        case 'u':
+                            if (this.pos + 4 > this.query.length()) {
+                                throw this.error("invalid unicode escape");
+                            }
+                            try {
+                                c = (char) Integer.parseInt(this.query.substring(this.pos, this.pos + 4), 16);
+                            } catch (NumberFormatException nfe) {
+                                throw this.error("invalid unicode escape");
+                            }
+                            this.pos += 4;
+                            break;
+                    }
+                }
+                sb.append(c);
+            }
+        }
+
+        protected Predicate parseOr() {
+            Predicate predicate = this.parseAnd();
+            this.skipWhitespace();
+            while (this.lookingAt("||")) {
+                this.pos += 2;
+                predicate = new Or(predicate, this.parseAnd());
+                this.skipWhitespace();
+            }
+            return predicate;
+        }
+
+        protected Predicate parseAnd() {
+            Predicate predicate = this.parseUnary();
+            this.skipWhitespace();
+            while (this.lookingAt("&&")) {
+                this.pos += 2;
+                predicate = new And(predicate, this.parseUnary());
+                this.skipWhitespace();
+            }
+            return predicate;
+        }
+
+        protected Predicate parseUnary() {
+            this.skipWhitespace();
+            if (this.peek() == '!' && this.lookingAt("!=") == false) {
+                this.pos++;
+                return new Not(this.parseUnary());
+            }
+            if (this.peek() == '(') {
+                this.pos++;
+                Predicate predicate = this.parseOr();
+                this.expect(')');
+                return predicate;
+            }
+            Operand left = this.parseOperand();
+            this.skipWhitespace();
+            int operator;
+            if      (this.lookingAt("==")) { operator = EQ; this.pos += 2; }
+            else if (this.lookingAt("!=")) { operator = NE; this.pos += 2; }
+            else if (this.lookingAt("<=")) { operator = LE; this.pos += 2; }
+            else if (this.lookingAt(">=")) { operator = GE; this.pos += 2; }
+            else if (this.lookingAt("<"))  { operator = LT; this.pos += 1; }
+            else if (this.lookingAt(">"))  { operator = GT; this.pos += 1; }
+            else {
+                return new Exists(left);
+            }
+            return new Comparison(left, operator, this.parseOperand());
+        }
+
+        protected Operand parseOperand() {
+            this.skipWhitespace();
+            char c = this.peek();
+            if (c == '@') {
+                this.pos++;
+                return this.parseRelativePath();
+            }
+            if (c == '\'' || c == '"') {
+                return new Literal(JsonNodeFactory.instance.textNode(this.parseString()));
+            }
+            if (this.lookingAt("true"))  { this.pos += 4; return new Literal(JsonNodeFactory.instance.booleanNode(true)); }
+            if (this.lookingAt("false")) { this.pos += 5; return new Literal(JsonNodeFactory.instance.booleanNode(false)); }
+            if (this.lookingAt("null"))  { this.pos += 4; return new Literal(JsonNodeFactory.instance.nullNode()); }
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                int start = this.pos;
+                boolean floating = false;
+                this.pos++;
+                while (this.atEnd() == false) {
+                    c = this.peek();
+                    if (c >= '0' && c <= '9') {
+                    } else if (c == '.' || c == 'e' || c == 'E' || ((c == '+' || c == '-') && floating)) {
+                        floating = true;
+                    } else {
+                        break;
+                    }
+                    this.pos++;
+                }
+                String number = this.query.substring(start, this.pos);
+                try {
+                    return new Literal(floating ? JsonNodeFactory.instance.numberNode(Double.parseDouble(number))
+                                                : JsonNodeFactory.instance.numberNode(Long.parseLong(number)));
+                } catch (NumberFormatException nfe) {
+                    throw this.error("invalid number '" + number + "'");
+                }
+            }
+            throw this.error("operand expected");
+        }
+
+        protected Operand parseRelativePath() {
+            List<String>  names   = new ArrayList<String>();
+            List<Integer> indices = new ArrayList<Integer>();
+            while (true) {
+                if (this.peek() == '.') {
+                    this.pos++;
+                    int start = this.pos;
+                    while (this.atEnd() == false && ".[]()=!<>&|, \t\r\n".indexOf(this.peek()) == -1) { this.pos++; }
+                    if (start == this.pos) {
+                        throw this.error("member name expected");
+                    }
+                    names.add(this.query.substring(start, this.pos));
+                    indices.add(-1);
+                } else if (this.peek() == '[') {
+                    this.pos++;
+                    this.skipWhitespace();
+                    if (this.peek() == '\'' || this.peek() == '"') {
+                        names.add(this.parseString());
+                        indices.add(-1);
+                    } else {
+                        Integer index = this.parseOptionalInteger();
+                        if (index == null) {
+                            throw this.error("index or name expected");
+                        }
+                        names.add(null);
+                        indices.add(index);
+                    }
+                    this.expect(']');
+                } else {
+                    break;
+                }
+            }
+            int[] array = new int[indices.size()];
+            for (int i=0; i<array.length; i++) { array[i] = indices.get(i); }
+            return new RelativePath(names.toArray(new String[names.size()]), array);
+        }
+    }
+}
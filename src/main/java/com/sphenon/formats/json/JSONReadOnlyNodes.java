@@ -0,0 +1,206 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+   Read only copies of Jackson trees, for documents shared between
+   callers, see JSONDocumentCache.
+
+   Objects and arrays are copied into subclasses of ObjectNode and
+   ArrayNode whose mutators, including those of the iterators returned by
+   fields, fieldNames and elements, throw an UnsupportedOperationException.
+   Value nodes are immutable anyway and are taken over as they are.
+   deepCopy returns an ordinary, modifiable tree.
+*/
+public class JSONReadOnlyNodes {
+
+    /**
+       @return a read only copy of node, or node itself if it is already
+               read only or a value node
+    */
+    static public JsonNode freeze(CallContext context, JsonNode node) {
+        if (node == null || node instanceof ReadOnlyObjectNode || node instanceof ReadOnlyArrayNode) {
+            return node;
+        }
+        if (node.isObject()) {
+            ReadOnlyObjectNode frozen = new ReadOnlyObjectNode(JsonNodeFactory.instance);
+            Iterator<Map.Entry<String,JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String,JsonNode> field = fields.next();
+                frozen.initialise(field.getKey(), freeze(context, field.getValue()));
+            }
+            return frozen;
+        }
+        if (node.isArray()) {
+            ReadOnlyArrayNode frozen = new ReadOnlyArrayNode(JsonNodeFactory.instance);
+            for (int e=0; e<node.size(); e++) {
+                frozen.initialise(freeze(context, node.get(e)));
+            }
+            return frozen;
+        }
+        return node;
+    }
+
+    static protected UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("JSON node is read only");
+    }
+
+    static protected <T> Iterator<T> readOnly(final Iterator<T> iterator) {
+        return new Iterator<T>() {
+            public boolean hasNext() { return iterator.hasNext(); }
+            public T       next()    { return iterator.next(); }
+            public void    remove()  { throw readOnly(); }
+        };
+    }
+
+    static public class ReadOnlyObjectNode extends ObjectNode {
+
+        protected ReadOnlyObjectNode(JsonNodeFactory factory) {
+            super(factory);
+        }
+
+        // the protected _put and _add are not overridden, the initialisers
+        // depend on them and they cannot be reached from outside
+        protected void initialise(String name, JsonNode value) {
+            super.set(name, value);
+        }
+
+        public Iterator<Map.Entry<String,JsonNode>> fields() {
+            final Iterator<Map.Entry<String,JsonNode>> fields = super.fields();
+            return new Iterator<Map.Entry<String,JsonNode>>() {
+                public boolean hasNext() { return fields.hasNext(); }
+                public Map.Entry<String,JsonNode> next() { return new AbstractMap.SimpleImmutableEntry<String,JsonNode>(fields.next()); }
+                public void    remove()  { throw readOnly(); }
+            };
+        }
+
+        public Iterator<String>   fieldNames() { return readOnly(super.fieldNames()); }
+        public Iterator<JsonNode> elements()   { return readOnly(super.elements()); }
+
+        public ObjectNode with(String name) {
+            JsonNode node = this.get(name);
+            if (node instanceof ObjectNode) { return (ObjectNode) node; }
+            throw readOnly();
+        }
+
+        public ArrayNode withArray(String name) {
+            JsonNode node = this.get(name);
+            if (node instanceof ArrayNode) { return (ArrayNode) node; }
+            throw readOnly();
+        }
+
+        public JsonNode   set(String name, JsonNode value)             { throw readOnly(); }
+        public JsonNode   setAll(Map<String,JsonNode> properties)      { throw readOnly(); }
+        public JsonNode   setAll(ObjectNode other)                     { throw readOnly(); }
+        public JsonNode   replace(String name, JsonNode value)         { throw readOnly(); }
+        public JsonNode   without(String name)                         { throw readOnly(); }
+        public ObjectNode without(Collection<String> names)            { throw readOnly(); }
+        public JsonNode   put(String name, JsonNode value)             { throw readOnly(); }
+        public JsonNode   remove(String name)                          { throw readOnly(); }
+        public ObjectNode remove(Collection<String> names)             { throw readOnly(); }
+        public ObjectNode removeAll()                                  { throw readOnly(); }
+        public JsonNode   putAll(Map<String,JsonNode> properties)      { throw readOnly(); }
+        public JsonNode   putAll(ObjectNode other)                     { throw readOnly(); }
+        public ObjectNode retain(Collection<String> names)             { throw readOnly(); }
+        public ObjectNode retain(String... names)                      { throw readOnly(); }
+        public ArrayNode  putArray(String name)                        { throw readOnly(); }
+        public ObjectNode putObject(String name)                       { throw readOnly(); }
+        public ObjectNode putPOJO(String name, Object pojo)            { throw readOnly(); }
+        public ObjectNode putNull(String name)                         { throw readOnly(); }
+        public ObjectNode put(String name, short value)                { throw readOnly(); }
+        public ObjectNode put(String name, Short value)                { throw readOnly(); }
+        public ObjectNode put(String name, int value)                  { throw readOnly(); }
+        public ObjectNode put(String name, Integer value)              { throw readOnly(); }
+        public ObjectNode put(String name, long value)                 { throw readOnly(); }
+        public ObjectNode put(String name, Long value)                 { throw readOnly(); }
+        public ObjectNode put(String name, float value)                { throw readOnly(); }
+        public ObjectNode put(String name, Float value)                { throw readOnly(); }
+        public ObjectNode put(String name, double value)               { throw readOnly(); }
+        public ObjectNode put(String name, Double value)               { throw readOnly(); }
+        public ObjectNode put(String name, BigDecimal value)           { throw readOnly(); }
+        public ObjectNode put(String name, String value)               { throw readOnly(); }
+        public ObjectNode put(String name, boolean value)              { throw readOnly(); }
+        public ObjectNode put(String name, Boolean value)              { throw readOnly(); }
+        public ObjectNode put(String name, byte[] value)               { throw readOnly(); }
+    }
+
+    static public class ReadOnlyArrayNode extends ArrayNode {
+
+        protected ReadOnlyArrayNode(JsonNodeFactory factory) {
+            super(factory);
+        }
+
+        protected void initialise(JsonNode value) {
+            super.add(value);
+        }
+
+        public Iterator<JsonNode> elements() { return readOnly(super.elements()); }
+
+        public JsonNode  set(int index, JsonNode value)                { throw readOnly(); }
+        public ArrayNode add(JsonNode value)                           { throw readOnly(); }
+        public ArrayNode addAll(ArrayNode other)                       { throw readOnly(); }
+        public ArrayNode addAll(Collection<JsonNode> nodes)            { throw readOnly(); }
+        public ArrayNode insert(int index, JsonNode value)             { throw readOnly(); }
+        public JsonNode  remove(int index)                             { throw readOnly(); }
+        public ArrayNode removeAll()                                   { throw readOnly(); }
+        public ArrayNode addArray()                                    { throw readOnly(); }
+        public ObjectNode addObject()                                  { throw readOnly(); }
+        public ArrayNode addPOJO(Object pojo)                          { throw readOnly(); }
+        public ArrayNode addNull()                                     { throw readOnly(); }
+        public ArrayNode add(int value)                                { throw readOnly(); }
+        public ArrayNode add(Integer value)                            { throw readOnly(); }
+        public ArrayNode add(long value)                               { throw readOnly(); }
+        public ArrayNode add(Long value)                               { throw readOnly(); }
+        public ArrayNode add(float value)                              { throw readOnly(); }
+        public ArrayNode add(Float value)                              { throw readOnly(); }
+        public ArrayNode add(double value)                             { throw readOnly(); }
+        public ArrayNode add(Double value)                             { throw readOnly(); }
+        public ArrayNode add(BigDecimal value)                         { throw readOnly(); }
+        public ArrayNode add(String value)                             { throw readOnly(); }
+        public ArrayNode add(boolean value)                            { throw readOnly(); }
+        public ArrayNode add(Boolean value)                            { throw readOnly(); }
+        public ArrayNode add(byte[] value)                             { throw readOnly(); }
+        public ArrayNode insertArray(int index)                        { throw readOnly(); }
+        public ObjectNode insertObject(int index)                      { throw readOnly(); }
+        public ArrayNode insertPOJO(int index, Object pojo)            { throw readOnly(); }
+        public ArrayNode insertNull(int index)                         { throw readOnly(); }
+        public ArrayNode insert(int index, int value)                  { throw readOnly(); }
+        public ArrayNode insert(int index, Integer value)              { throw readOnly(); }
+        public ArrayNode insert(int index, long value)                 { throw readOnly(); }
+        public ArrayNode insert(int index, Long value)                 { throw readOnly(); }
+        public ArrayNode insert(int index, float value)                { throw readOnly(); }
+        public ArrayNode insert(int index, Float value)                { throw readOnly(); }
+        public ArrayNode insert(int index, double value)               { throw readOnly(); }
+        public ArrayNode insert(int index, Double value)               { throw readOnly(); }
+        public ArrayNode insert(int index, BigDecimal value)           { throw readOnly(); }
+        public ArrayNode insert(int index, String value)               { throw readOnly(); }
+        public ArrayNode insert(int index, boolean value)              { throw readOnly(); }
+        public ArrayNode insert(int index, Boolean value)              { throw readOnly(); }
+        public ArrayNode insert(int index, byte[] value)               { throw readOnly(); }
+    }
+}
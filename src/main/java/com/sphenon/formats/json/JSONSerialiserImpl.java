@@ -16,6 +16,7 @@ package com.sphenon.formats.json;
 
 import com.sphenon.basics.context.*;
 import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.configuration.*;
 import com.sphenon.basics.debug.*;
 import com.sphenon.basics.exception.*;
 import com.sphenon.basics.encoding.*;
@@ -34,13 +35,30 @@ import com.sphenon.basics.state.*;
 import com.sphenon.basics.operations.*;
 import com.sphenon.basics.operations.classes.*;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.POJONode;
+
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.List;
 import java.util.Stack;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
    @ignore ==============================================================================================
@@ -61,8 +79,33 @@ import java.util.Stack;
                                                       both can be omitted and then it defaults to UTF8, if
                                                       both are omitted obviously no recoding takes place
 
+   @configuration JSONSerialiser:json-byte-array-encoding if "base64", byte arrays are written as Base64
+                                                          encoded strings, otherwise as arrays of numbers
+
+   @configuration JSONSerialiser:json-parallel-threshold if greater than 0, lists and GenericIterables with at
+                                                         least this number of elements, of which as many are
+                                                         read ahead, are split into chunks, which are
+                                                         serialised in parallel on the common fork join pool,
+                                                         each by its own serialiser with a child context and
+                                                         copies of properties, attachments and serialisation
+                                                         states; the output is identical to sequential serialisation,
+                                                         so elements must not depend on being serialised in
+                                                         order (default 0)
+
+   @configuration JSONSerialiser:json-parallel-chunk-size number of elements per chunk in parallel
+                                                          serialisation (default 1024)
+
+   @configuration com.sphenon.formats.json.JSONSerialiserImpl.PoolSize maximum number of idle serialisers
+                                                                       kept for reuse by the static
+                                                                       serialise methods (default 64)
 */
 public class JSONSerialiserImpl implements JSONSerialiser {    
+    static final public Class _class = JSONSerialiserImpl.class;
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected int pool_size = config.get(RootContext.getInitialisationContext(), "PoolSize", 64);
 
     static public Scope serialisation_attribute_scope      = new Class_Scope(RootContext.getFallbackCallContext(), (String) null, (Scope) null, "this.IsAttribute", true);
     static public Scope serialisation_owning_end_scope     = new Class_Scope(RootContext.getFallbackCallContext(), (String) null, (Scope) null, "this.IsOwningEnd", true);
@@ -79,19 +122,119 @@ public class JSONSerialiserImpl implements JSONSerialiser {
         return sb.toString();
     }
 
+    /**
+       Serialises to UTF-8 encoded bytes without an intermediate String.
+    */
+    static public byte[] serialiseToBytes(CallContext context, Object object, String... properties) {
+        JSONUTF8Sink sink = new JSONUTF8Sink(context);
+        try {
+            serialise(context, sink, object, properties);
+            return sink.toByteArray();
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "could not serialise to JSON");
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        } finally {
+            closeSink(context, sink);
+        }
+    }
+
+    /**
+       Serialises UTF-8 encoded to the stream, which is flushed but not closed.
+    */
+    static public void serialise(CallContext context, OutputStream output_stream, Object object, String... properties) throws IOException {
+        JSONUTF8Sink sink = new JSONUTF8Sink(context, output_stream);
+        try {
+            serialise(context, sink, object, properties);
+            sink.flush();
+        } finally {
+            closeSink(context, sink);
+        }
+    }
+
+    /**
+       Serialises UTF-8 encoded to the channel, which is not closed.
+    */
+    static public void serialise(CallContext context, WritableByteChannel channel, Object object, String... properties) throws IOException {
+        JSONUTF8Sink sink = new JSONUTF8Sink(context, channel);
+        try {
+            serialise(context, sink, object, properties);
+            sink.flush();
+        } finally {
+            closeSink(context, sink);
+        }
+    }
+
+    static protected void closeSink(CallContext context, JSONUTF8Sink sink) {
+        try {
+            sink.close();
+        } catch (IOException ioe) {
+            // output failed already, the original exception is more informative
+        }
+    }
+
     static public void serialise(CallContext context, Appendable appendable, Object object, String... properties) throws IOException {
-        JSONSerialiserImpl jsi = new JSONSerialiserImpl(context, appendable, properties);
+        long start_size = JSONSerialiserMetrics.enabled ? getOutputSize(appendable) : -1L;
+        JSONSerialiserImpl jsi = acquire(context, appendable, properties);
+        try {
+            String wrap = jsi.getSettings(context).getWrapWithin(context);
+            if (wrap != null) {
+                appendable.append("{\"").append(wrap).append("\":");
+            }
+
+            jsi.serialise(context, object, (String) null);
 
-        String wrap = jsi.getProperty(context, "json-wrap-within", (String) null);
-        if (wrap != null) {
-            appendable.append("{\"").append(wrap).append("\":");
+            if (wrap != null) {
+                appendable.append("}");
+            }
+        } finally {
+            release(context, jsi);
+        }
+        if (JSONSerialiserMetrics.enabled) {
+            JSONSerialiserMetrics.recordSerialisation(start_size == -1L ? -1L : getOutputSize(appendable) - start_size);
         }
+    }
+
+    /**
+       @return the number of characters or bytes written to the appendable
+               so far, or -1 if this is not known
+    */
+    static protected long getOutputSize(Appendable appendable) {
+        if (appendable instanceof StringBuilder) { return ((StringBuilder) appendable).length(); }
+        if (appendable instanceof JSONUTF8Sink)  { return ((JSONUTF8Sink) appendable).getByteCount(); }
+        return -1L;
+    }
 
-        jsi.serialise(context, object, (String) null);
+    static protected ConcurrentLinkedQueue<JSONSerialiserImpl> pool = new ConcurrentLinkedQueue<JSONSerialiserImpl>();
+    static protected AtomicInteger pool_count = new AtomicInteger();
+
+    /**
+       Retrieves a serialiser from the pool, or creates one, and resets it
+       for the given appendable and properties. Pass it to release when
+       done. The pool is not bound to threads, so serialisers may be
+       acquired and released on virtual threads as well.
+    */
+    static public JSONSerialiserImpl acquire(CallContext context, Appendable appendable, String... properties) {
+        JSONSerialiserImpl jsi = pool.poll();
+        if (jsi == null) {
+            return new JSONSerialiserImpl(context, appendable, properties);
+        }
+        pool_count.decrementAndGet();
+        jsi.reset(context, appendable, properties);
+        return jsi;
+    }
 
-        if (wrap != null) {
-            appendable.append("}");
+    /**
+       Returns a serialiser obtained from acquire to the pool; it must not
+       be used afterwards.
+    */
+    static public void release(CallContext context, JSONSerialiserImpl jsi) {
+        if (jsi.getClass() != JSONSerialiserImpl.class) { return; }
+        jsi.clear(context);
+        if (pool_count.incrementAndGet() > pool_size) {
+            pool_count.decrementAndGet();
+            return;
         }
+        pool.offer(jsi);
     }
 
     public void serialise(CallContext context, String n1, Object o1, String n2, Object o2, String n3, Object o3, String n4, Object o4, String n5, Object o5, String n6, Object o6, String n7, Object o7, String n8, Object o8, String n9, Object o9) throws IOException {
@@ -134,8 +277,12 @@ public class JSONSerialiserImpl implements JSONSerialiser {
     }
 
     static public void serialise(CallContext context, String n1, Object o1, String n2, Object o2, String n3, Object o3, String n4, Object o4, String n5, Object o5, String n6, Object o6, String n7, Object o7, String n8, Object o8, String n9, Object o9, Appendable appendable, String... properties) throws IOException {
-        JSONSerialiserImpl jsi = new JSONSerialiserImpl(context, appendable, properties);
-        jsi.serialise(context, n1, o1, n2, o2, n3, o3, n4, o4, n5, o5, n6, o6, n7, o7, n8, o8, n9, o9);
+        JSONSerialiserImpl jsi = acquire(context, appendable, properties);
+        try {
+            jsi.serialise(context, n1, o1, n2, o2, n3, o3, n4, o4, n5, o5, n6, o6, n7, o7, n8, o8, n9, o9);
+        } finally {
+            release(context, jsi);
+        }
     }
     static public void serialise(CallContext context, String n1, Object o1, String n2, Object o2, String n3, Object o3, String n4, Object o4, String n5, Object o5, String n6, Object o6, String n7, Object o7, String n8, Object o8, Appendable appendable, String... properties) throws IOException {
         serialise(context, n1, o1, n2, o2, n3, o3, n4, o4, n5, o5, n6, o6, n7, o7, n8, o8, null, null, appendable, properties);
@@ -163,14 +310,14 @@ public class JSONSerialiserImpl implements JSONSerialiser {
     }
 
     protected Appendable appendable;
+    protected JSONUTF8Sink sink;
     protected boolean first;
     protected boolean named;
-    protected Stack<Boolean> first_stack;
-    protected Stack<Boolean> named_stack;
 
-    protected Encoding source_encoding;
-    protected Encoding target_encoding;
-    protected boolean  resolve_variatives;
+    protected Encoding       source_encoding;
+    protected Encoding       target_encoding;
+    protected JSONFieldNames field_names;
+    protected boolean        resolve_variatives;
 
     public JSONSerialiserImpl(CallContext context, Appendable appendable, Map<String,String> properties) {
         this(context, appendable, properties, null);
@@ -178,26 +325,85 @@ public class JSONSerialiserImpl implements JSONSerialiser {
 
     public JSONSerialiserImpl(CallContext context, Appendable appendable, Map<String,String> properties, Map<String,Object> attachments) {
         this.appendable  = appendable; 
+        this.sink        = (appendable instanceof JSONUTF8Sink ? (JSONUTF8Sink) appendable : null);
         this.properties  = properties;
         this.attachments = attachments;
+        this.field_names = JSONFieldNames.get(context, null, null);
+        if (JSONSerialiserMetrics.enabled) { JSONSerialiserMetrics.recordInstance(); }
         this.first = true;
-        this.first_stack = new Stack<Boolean>();
         this.named = false;
-        this.named_stack = new Stack<Boolean>();
         this.current_level = 0;
     }
 
     public JSONSerialiserImpl(CallContext context, Appendable appendable, String... properties) {
         this(context, appendable, makeMap(context, properties));
+        this.settings = JSONSerialiserSettings.get(context, properties);
+        this.configure(context);
+    }
 
-        String se = this.getProperty(context, "json-source-encoding", (String) null);
-        String te = this.getProperty(context, "json-target-encoding", (String) null);
-        if (se != null || te != null) {
-            this.source_encoding = Encoding.getEncoding(context, se == null ? "UTF8" : se);
-            this.target_encoding = Encoding.getEncoding(context, te == null ? "UTF8" : te);
+    protected void configure(CallContext context) {
+        JSONSerialiserSettings settings = this.getSettings(context);
+        this.field_names        = settings.field_names;
+        this.source_encoding    = this.field_names.source_encoding;
+        this.target_encoding    = this.field_names.target_encoding;
+        this.resolve_variatives = settings.resolve_variatives;
+    }
+
+    protected JSONSerialiserSettings settings;
+
+    /**
+       @return the current properties in typed form; the settings object is
+               immutable and replaced whenever a property changes, pushed
+               settings are derived via JSONSerialiserSettings.derive and
+               restored as they were when popped
+
+       The field name encoding and json-resolve-variatives are taken from
+       the settings only when the serialiser is constructed or reset with
+       a property array; as before, later changes of these properties do
+       not affect the serialiser, so getFieldNames and
+       getResolveVariatives of the current settings may differ from what
+       it actually uses.
+    */
+    public JSONSerialiserSettings getSettings(CallContext context) {
+        JSONSerialiserSettings settings = this.settings;
+        if (settings == null) {
+            settings = new JSONSerialiserSettings(context, this.properties == null ? new HashMap<String,String>() : new HashMap<String,String>(this.properties));
+            this.settings = settings;
         }
+        return settings;
+    }
 
-        this.resolve_variatives = this.getProperty(context, "json-resolve-variatives", false);
+    /**
+       Prepares the serialiser for a new output, as if it were constructed
+       with the given arguments, but reusing its collections.
+    */
+    public void reset(CallContext context, Appendable appendable, String... properties) {
+        this.clear(context);
+        this.appendable = appendable;
+        this.sink       = (appendable instanceof JSONUTF8Sink ? (JSONUTF8Sink) appendable : null);
+        if (this.properties == null) {
+            this.properties = new HashMap<String,String>();
+        }
+        fillMap(context, this.properties, properties);
+        this.settings = JSONSerialiserSettings.get(context, properties);
+        this.configure(context);
+    }
+
+    /**
+       Drops all state and references to output, properties and attachments.
+    */
+    protected void clear(CallContext context) {
+        this.appendable    = null;
+        this.sink          = null;
+        this.settings      = null;
+        this.first         = true;
+        this.named         = false;
+        this.current_level = 0;
+        if (this.properties           != null) { this.properties.clear(); }
+        if (this.property_stack       != null) { this.property_stack.clear(); }
+        if (this.attachments          != null) { this.attachments.clear(); }
+        if (this.attachment_stack     != null) { this.attachment_stack.clear(); }
+        if (this.serialisation_states != null) { this.serialisation_states.clear(); }
     }
 
     protected String recode(CallContext context, String string) {
@@ -205,8 +411,6 @@ public class JSONSerialiserImpl implements JSONSerialiser {
     }
 
     public void openObject(CallContext context, String name) throws IOException {
-        this.current_level++;
-
         if (this.first == false && this.named == false) { 
             appendable.append(',');
         }
@@ -217,13 +421,11 @@ public class JSONSerialiserImpl implements JSONSerialiser {
         }
 
         if (name != null) { 
-            appendable.append('"');
-            appendable.append(recode(context, name));
-            appendable.append('"');
-            appendable.append(':');
+            this.appendName(context, name);
         }
 
         this.appendable.append('{');
+        this.pushLevel(context, true);
 
         this.named = false;
         this.first = true;
@@ -235,14 +437,15 @@ public class JSONSerialiserImpl implements JSONSerialiser {
             throw (ExceptionPreConditionViolation) null; // compiler insists
         }
 
+        this.popLevel(context, true);
         this.appendable.append('}');
+
+        // the container is a complete value within the enclosing level
+        this.named = false;
         this.first = false;
-        this.current_level--;
     }
 
     public void openArray(CallContext context, String name) throws IOException {
-        this.current_level++;
-
         if (this.first == false && this.named == false) { 
             appendable.append(',');
         }
@@ -253,13 +456,11 @@ public class JSONSerialiserImpl implements JSONSerialiser {
         }
 
         if (name != null) { 
-            appendable.append('"');
-            appendable.append(recode(context, name));
-            appendable.append('"');
-            appendable.append(':');
+            this.appendName(context, name);
         }
 
         this.appendable.append('[');
+        this.pushLevel(context, false);
 
         this.named = false;
         this.first = true;
@@ -271,9 +472,12 @@ public class JSONSerialiserImpl implements JSONSerialiser {
             throw (ExceptionPreConditionViolation) null; // compiler insists
         }
 
+        this.popLevel(context, false);
         this.appendable.append(']');
+
+        // the container is a complete value within the enclosing level
+        this.named = false;
         this.first = false;
-        this.current_level--;
     }
 
     public void serialise(CallContext context, Object object, String name) throws IOException {
@@ -290,10 +494,7 @@ public class JSONSerialiserImpl implements JSONSerialiser {
         this.first = true;
 
         if (name != null) { 
-            appendable.append('"');
-            appendable.append(recode(context, name));
-            appendable.append('"');
-            appendable.append(':');
+            this.appendName(context, name);
 
             this.named = true;
         }
@@ -304,129 +505,752 @@ public class JSONSerialiserImpl implements JSONSerialiser {
 
         if (object == null) {
             appendable.append("null");
-        } else if (object instanceof String) {
-            appendable.append('"');
-            appendable.append(Encoding.recode(context, (String) object, Encoding.UTF8, Encoding.JSON));
-            appendable.append('"');
-        } else if (object instanceof Character) {
-            appendable.append('"');
-            appendable.append(Encoding.recode(context, String.valueOf((Character) object), Encoding.UTF8, Encoding.JSON));
-            appendable.append('"');
-        } else if (object instanceof RichText) {
-            appendable.append("{\"" + recode(context, "@Class") + "\":\"RichText\",\"" + recode(context, "Text") + "\":\"");
-            appendable.append(Encoding.recode(context, ((RichText) object).getText(context), Encoding.UTF8, Encoding.JSON));
-            appendable.append("\",\"" + recode(context, "MediaType") + "\":\"");
-            appendable.append(((RichText) object).getMediaType(context));
-            appendable.append("\"}");
-        } else if (    object instanceof Boolean
-                    || object instanceof Byte
-                    || object instanceof Short
-                    || object instanceof Integer
-                    || object instanceof Long
-                    || object instanceof Float
-                    || object instanceof Double
-                  ) {
-            appendable.append(object.toString());
-        } else if (object instanceof List) {
-            this.openArray(context, null);
-            for (Object item : (List) object) {
-                this.serialise(context, item, null);
+        } else {
+            if (JSONSerialiserMetrics.enabled) { JSONSerialiserMetrics.recordValue(object.getClass()); }
+            writers.get(object.getClass()).write(context, this, object);
+        }
+
+        this.named = false;
+        this.first = false;
+    }
+
+    protected void appendName(CallContext context, String name) throws IOException {
+        if (this.sink != null) {
+            this.sink.write(this.field_names.getUTF8(context, name));
+        } else {
+            this.appendable.append(this.field_names.get(context, name));
+        }
+    }
+
+    public Appendable getAppendable(CallContext context) {
+        return this.appendable;
+    }
+
+    static protected class RegisteredWriter {
+        protected Class           type;
+        protected JSONValueWriter writer;
+
+        protected RegisteredWriter(Class type, JSONValueWriter writer) {
+            this.type   = type;
+            this.writer = writer;
+        }
+    }
+
+    static protected RegisteredWriter[] registered_writers = new RegisteredWriter[0];
+
+    static protected volatile ClassValue<JSONValueWriter> writers = createWriters();
+
+    static protected ClassValue<JSONValueWriter> createWriters() {
+        final RegisteredWriter[] registered = registered_writers;
+        return new ClassValue<JSONValueWriter>() {
+            protected JSONValueWriter computeValue(Class<?> type) {
+                return resolveWriter(registered, type);
             }
-            this.closeArray(context);
-        } else if (object.getClass().isArray()) {
+        };
+    }
+
+    /**
+       Registers a writer for values of the given type, including subtypes.
+       Registered writers take precedence over the built-in handling; if
+       several registered types match, a writer registered for exactly the
+       class of the value is used, otherwise the one registered first.
+       Registering a type again replaces its writer, registering null
+       removes it.
+    */
+    static synchronized public void registerWriter(CallContext context, Class type, JSONValueWriter writer) {
+        java.util.ArrayList<RegisteredWriter> registered = new java.util.ArrayList<RegisteredWriter>(registered_writers.length + 1);
+        boolean replaced = false;
+        for (RegisteredWriter entry : registered_writers) {
+            if (entry.type == type) {
+                replaced = true;
+                if (writer != null) {
+                    registered.add(new RegisteredWriter(type, writer));
+                }
+            } else {
+                registered.add(entry);
+            }
+        }
+        if (replaced == false && writer != null) {
+            registered.add(new RegisteredWriter(type, writer));
+        }
+        registered_writers = registered.toArray(new RegisteredWriter[registered.size()]);
+        // previously resolved classes may be affected, so start over
+        writers = createWriters();
+    }
+
+    static protected JSONValueWriter resolveWriter(RegisteredWriter[] registered, Class type) {
+        for (RegisteredWriter entry : registered) {
+            if (entry.type == type) { return entry.writer; }
+        }
+        for (RegisteredWriter entry : registered) {
+            if (entry.type.isAssignableFrom(type)) { return entry.writer; }
+        }
+        return resolveBuiltinWriter(type);
+    }
+
+    /**
+       Determines the built-in handling of a class; the order of the checks
+       decides for classes that are assignable to more than one of the
+       types.
+    */
+    static protected JSONValueWriter resolveBuiltinWriter(Class type) {
+        if (String.class == type)                          { return STRING_WRITER; }
+        if (Character.class == type)                       { return CHARACTER_WRITER; }
+        if (RichText.class.isAssignableFrom(type))         { return RICH_TEXT_WRITER; }
+        if (    Boolean.class == type
+             || Byte.class == type
+             || Short.class == type
+             || Integer.class == type
+             || Long.class == type
+             || Float.class == type
+             || Double.class == type
+           )                                               { return TO_STRING_WRITER; }
+        if (List.class.isAssignableFrom(type))             { return LIST_WRITER; }
+        if (type.isArray())                                { return type.getComponentType().isPrimitive() ? PRIMITIVE_ARRAY_WRITER : ARRAY_WRITER; }
+        if (Map.class.isAssignableFrom(type))              { return MAP_WRITER; }
+        if (JSONNode.class.isAssignableFrom(type))         { return JSON_NODE_WRITER; }
+        if (JsonNode.class.isAssignableFrom(type))         { return JACKSON_NODE_WRITER; }
+        if (GenericIterable.class.isAssignableFrom(type))  { return GENERIC_ITERABLE_WRITER; }
+        if (Data_MediaObject.class.isAssignableFrom(type)) { return MEDIA_OBJECT_WRITER; }
+        return resolveObjectWriter(type);
+    }
+
+    static protected JSONValueWriter resolveObjectWriter(Class type) {
+        if (Execution.class.isAssignableFrom(type))        { return EXECUTION_WRITER; }
+        if (JSONSerialisable.class.isAssignableFrom(type)) { return SERIALISABLE_WRITER; }
+        return OBJECT_WRITER;
+    }
+
+    static protected final JSONValueWriter STRING_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeString(context, (String) object);
+        }
+    };
+
+    static protected final JSONValueWriter CHARACTER_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeCharacter(context, ((Character) object).charValue());
+        }
+    };
+
+    static protected final JSONValueWriter RICH_TEXT_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeRichText(context, (RichText) object);
+        }
+    };
+
+    static protected final JSONValueWriter TO_STRING_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.appendable.append(object.toString());
+        }
+    };
+
+    static protected final JSONValueWriter LIST_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeList(context, (List) object);
+        }
+    };
+
+    static protected final JSONValueWriter ARRAY_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeArray(context, object);
+        }
+    };
+
+    static protected final JSONValueWriter PRIMITIVE_ARRAY_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            if      (object instanceof int[])     { serialiser.writeArray(context, (int[]) object); }
+            else if (object instanceof long[])    { serialiser.writeArray(context, (long[]) object); }
+            else if (object instanceof double[])  { serialiser.writeArray(context, (double[]) object); }
+            else if (object instanceof float[])   { serialiser.writeArray(context, (float[]) object); }
+            else if (object instanceof short[])   { serialiser.writeArray(context, (short[]) object); }
+            else if (object instanceof byte[])    { serialiser.writeArray(context, (byte[]) object); }
+            else if (object instanceof boolean[]) { serialiser.writeArray(context, (boolean[]) object); }
+            else if (object instanceof char[])    { serialiser.writeArray(context, (char[]) object); }
+        }
+    };
+
+    static protected final JSONValueWriter MAP_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeMap(context, (Map) object);
+        }
+    };
+
+    static protected final JSONValueWriter GENERIC_ITERABLE_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeGenericIterable(context, (GenericIterable) object);
+        }
+    };
+
+    static protected final JSONValueWriter JSON_NODE_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeJSONNode(context, (JSONNode) object);
+        }
+    };
+
+    static protected final JSONValueWriter JACKSON_NODE_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeJsonNode(context, (JsonNode) object);
+        }
+    };
+
+    /**
+       Media objects are embedded only if they contain JSON, which depends
+       on the instance, otherwise they are treated like any other object.
+    */
+    static protected final JSONValueWriter MEDIA_OBJECT_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            if (serialiser.isJSONMedia(context, (Data_MediaObject) object)) {
+                serialiser.writeMediaObject(context, (Data_MediaObject) object);
+            } else {
+                resolveObjectWriter(object.getClass()).write(context, serialiser, object);
+            }
+        }
+    };
+
+    static protected final JSONValueWriter EXECUTION_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeExecution(context, (Execution) object);
+        }
+    };
+
+    static protected final JSONValueWriter SERIALISABLE_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            if (JSONSerialiserMetrics.enabled) {
+                long start = System.nanoTime();
+                ((JSONSerialisable) object).jsonSerialise(context, serialiser);
+                JSONSerialiserMetrics.recordSerialisable(object.getClass(), System.nanoTime() - start);
+            } else {
+                ((JSONSerialisable) object).jsonSerialise(context, serialiser);
+            }
+        }
+    };
+
+    static protected final JSONValueWriter OBJECT_WRITER = new JSONValueWriter() {
+        public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException {
+            serialiser.writeString(context, MessageTextClass.convertToString(context, object));
+        }
+    };
+
+    protected void writeString(CallContext context, String string) throws IOException {
+        appendable.append('"');
+        JSONStringEscaper.escape(appendable, string);
+        appendable.append('"');
+    }
+
+    protected void writeCharacter(CallContext context, char character) throws IOException {
+        appendable.append('"');
+        JSONStringEscaper.escape(appendable, character);
+        appendable.append('"');
+    }
+
+    protected void writeRichText(CallContext context, RichText rich_text) throws IOException {
+        appendable.append(this.field_names.getRichTextPrefix(context));
+        JSONStringEscaper.escape(appendable, rich_text.getText(context));
+        appendable.append(this.field_names.getRichTextMediaType(context));
+        appendable.append(rich_text.getMediaType(context));
+        appendable.append(this.field_names.getRichTextSuffix(context));
+    }
+
+    protected void writeList(CallContext context, List list) throws IOException {
+        if (this.isParallel(context, list.size())) {
+            this.writeListInParallel(context, list.iterator());
+            return;
+        }
+        this.openArray(context, null);
+        for (Object item : list) {
+            this.serialise(context, item, null);
+        }
+        this.closeArray(context);
+    }
+
+    protected void writeArray(CallContext context, Object array) throws IOException {
+        this.openArray(context, null);
+        for (int i=0; i<java.lang.reflect.Array.getLength(array); i++) {
+            this.serialise(context, java.lang.reflect.Array.get(array, i), null);
+        }
+        this.closeArray(context);
+    }
+
+    protected StringBuilder number_buffer;
+
+    /**
+       Returns the appendable itself if numbers can be appended to it
+       directly, otherwise an emptied buffer which must be passed to
+       flushNumbers afterwards.
+    */
+    protected StringBuilder getNumberBuffer() {
+        if (this.appendable instanceof StringBuilder) {
+            return (StringBuilder) this.appendable;
+        }
+        if (this.number_buffer == null) {
+            this.number_buffer = new StringBuilder(256);
+        } else {
+            this.number_buffer.setLength(0);
+        }
+        return this.number_buffer;
+    }
+
+    /**
+       Passes the buffered numbers on to the appendable, if the buffer
+       exceeds the given size or if the size is 0.
+    */
+    protected StringBuilder flushNumbers(StringBuilder buffer, int size) throws IOException {
+        if (buffer != this.appendable && buffer.length() >= size) {
+            this.appendable.append(buffer);
+            buffer.setLength(0);
+        }
+        return buffer;
+    }
+
+    static protected final int NUMBER_BUFFER_SIZE = 4096;
+
+    protected void writeArray(CallContext context, int[] array) throws IOException {
+        this.openArray(context, null);
+        StringBuilder buffer = this.getNumberBuffer();
+        for (int i=0; i<array.length; i++) {
+            if (i != 0) { buffer.append(','); }
+            this.flushNumbers(buffer.append(array[i]), NUMBER_BUFFER_SIZE);
+        }
+        this.flushNumbers(buffer, 0);
+        this.closeArray(context);
+    }
+
+    protected void writeArray(CallContext context, long[] array) throws IOException {
+        this.openArray(context, null);
+        StringBuilder buffer = this.getNumberBuffer();
+        for (int i=0; i<array.length; i++) {
+            if (i != 0) { buffer.append(','); }
+            this.flushNumbers(buffer.append(array[i]), NUMBER_BUFFER_SIZE);
+        }
+        this.flushNumbers(buffer, 0);
+        this.closeArray(context);
+    }
+
+    protected void writeArray(CallContext context, double[] array) throws IOException {
+        this.openArray(context, null);
+        StringBuilder buffer = this.getNumberBuffer();
+        for (int i=0; i<array.length; i++) {
+            if (i != 0) { buffer.append(','); }
+            this.flushNumbers(buffer.append(array[i]), NUMBER_BUFFER_SIZE);
+        }
+        this.flushNumbers(buffer, 0);
+        this.closeArray(context);
+    }
+
+    protected void writeArray(CallContext context, float[] array) throws IOException {
+        this.openArray(context, null);
+        StringBuilder buffer = this.getNumberBuffer();
+        for (int i=0; i<array.length; i++) {
+            if (i != 0) { buffer.append(','); }
+            this.flushNumbers(buffer.append(array[i]), NUMBER_BUFFER_SIZE);
+        }
+        this.flushNumbers(buffer, 0);
+        this.closeArray(context);
+    }
+
+    protected void writeArray(CallContext context, short[] array) throws IOException {
+        this.openArray(context, null);
+        StringBuilder buffer = this.getNumberBuffer();
+        for (int i=0; i<array.length; i++) {
+            if (i != 0) { buffer.append(','); }
+            this.flushNumbers(buffer.append(array[i]), NUMBER_BUFFER_SIZE);
+        }
+        this.flushNumbers(buffer, 0);
+        this.closeArray(context);
+    }
+
+    protected void writeArray(CallContext context, boolean[] array) throws IOException {
+        this.openArray(context, null);
+        StringBuilder buffer = this.getNumberBuffer();
+        for (int i=0; i<array.length; i++) {
+            if (i != 0) { buffer.append(','); }
+            this.flushNumbers(buffer.append(array[i]), NUMBER_BUFFER_SIZE);
+        }
+        this.flushNumbers(buffer, 0);
+        this.closeArray(context);
+    }
+
+    protected void writeArray(CallContext context, char[] array) throws IOException {
+        this.openArray(context, null);
+        for (int i=0; i<array.length; i++) {
+            if (i != 0) { appendable.append(','); }
+            this.writeCharacter(context, array[i]);
+        }
+        this.closeArray(context);
+    }
+
+    /**
+       Writes a byte array as an array of numbers or, if the property
+       json-byte-array-encoding is "base64", as a Base64 encoded string.
+    */
+    protected void writeArray(CallContext context, byte[] array) throws IOException {
+        if (this.getSettings(context).byte_array_base64) {
+            this.writeBase64(context, array);
+            return;
+        }
+        this.openArray(context, null);
+        StringBuilder buffer = this.getNumberBuffer();
+        for (int i=0; i<array.length; i++) {
+            if (i != 0) { buffer.append(','); }
+            this.flushNumbers(buffer.append(array[i]), NUMBER_BUFFER_SIZE);
+        }
+        this.flushNumbers(buffer, 0);
+        this.closeArray(context);
+    }
+
+    static protected final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+       Writes the bytes as a standard, padded Base64 string, encoding them
+       chunk by chunk into the number buffer.
+    */
+    protected void writeBase64(CallContext context, byte[] array) throws IOException {
+        appendable.append('"');
+        StringBuilder buffer = this.getNumberBuffer();
+        int full = array.length - array.length % 3;
+        for (int i=0; i<full; i+=3) {
+            int bits = ((array[i] & 0xFF) << 16) | ((array[i+1] & 0xFF) << 8) | (array[i+2] & 0xFF);
+            buffer.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3F]).append(BASE64[(bits >>> 6) & 0x3F]).append(BASE64[bits & 0x3F]);
+            this.flushNumbers(buffer, NUMBER_BUFFER_SIZE);
+        }
+        int rest = array.length - full;
+        if (rest != 0) {
+            int bits = (array[full] & 0xFF) << 16;
+            if (rest == 2) { bits |= (array[full+1] & 0xFF) << 8; }
+            buffer.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3F]);
+            buffer.append(rest == 2 ? BASE64[(bits >>> 6) & 0x3F] : '=').append('=');
+        }
+        this.flushNumbers(buffer, 0);
+        appendable.append('"');
+    }
+
+    /**
+       Set in serialisers of parallel chunks, which serialise nested
+       lists sequentially.
+    */
+    protected boolean parallel_chunk;
+
+    protected boolean isParallel(CallContext context, int size) {
+        if (this.parallel_chunk) { return false; }
+        int threshold = this.getSettings(context).parallel_threshold;
+        return threshold > 0 && size >= threshold;
+    }
+
+    /**
+       Serialises the items in chunks of json-parallel-chunk-size items on
+       the common fork join pool and appends the chunks in order. Chunks are
+       pulled from the iterator only as the window of pending chunks
+       advances, so at most window chunks of items and results are held in
+       memory and the number of items need not be known in advance.
+    */
+    protected void writeListInParallel(CallContext context, Iterator items) throws IOException {
+        int chunk_size = this.getSettings(context).parallel_chunk_size;
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        // limits the number of pending chunks held in memory
+        int window = Math.max(2, 2 * pool.getParallelism());
+
+        this.openArray(context, null);
+        ArrayDeque<Future<StringBuilder>> futures = new ArrayDeque<Future<StringBuilder>>(window);
+        boolean first = true;
+        try {
+            while (true) {
+                while (futures.size() < window && items.hasNext()) {
+                    List chunk = new ArrayList(chunk_size);
+                    while (chunk.size() < chunk_size && items.hasNext()) {
+                        chunk.add(items.next());
+                    }
+                    futures.addLast(pool.submit(this.createChunkTask(context, chunk)));
+                }
+                if (futures.isEmpty()) { break; }
+                StringBuilder chunk = this.getChunk(context, futures.peekFirst());
+                futures.removeFirst();
+                if ( ! first) {
+                    appendable.append(',');
+                }
+                first = false;
+                appendable.append(chunk);
+            }
+        } finally {
+            for (Future<StringBuilder> future : futures) {
+                future.cancel(false);
+            }
+        }
+        this.closeArray(context);
+    }
+
+    static protected Iterator concat(final Iterator first, final Iterator second) {
+        return new Iterator() {
+            public boolean hasNext() { return first.hasNext() || second.hasNext(); }
+            public Object  next()    { return first.hasNext() ? first.next() : second.next(); }
+            public void    remove()  { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    /**
+       Creates the task for a chunk on the calling thread, with a child
+       context of its own, since contexts are not shared between threads.
+    */
+    protected Callable<StringBuilder> createChunkTask(CallContext context, final List chunk) {
+        final Context chunk_context = Context.create(context);
+        final JSONSerialiserImpl chunk_serialiser = this.createChunkSerialiser(chunk_context, new StringBuilder());
+        return new Callable<StringBuilder>() {
+            public StringBuilder call() throws IOException {
+                for (Object item : chunk) {
+                    chunk_serialiser.serialise(chunk_context, item, null);
+                }
+                return (StringBuilder) chunk_serialiser.appendable;
+            }
+        };
+    }
+
+    /**
+       Creates a serialiser for a parallel chunk, which continues at the
+       current level with copies of the current properties, attachments and
+       serialisation states. It is created on the calling thread, so the
+       copies are consistent.
+    */
+    protected JSONSerialiserImpl createChunkSerialiser(CallContext context, StringBuilder buffer) {
+        JSONSerialiserImpl chunk_serialiser = new JSONSerialiserImpl(context, buffer,
+                                                                     this.properties  == null ? null : new HashMap<String,String>(this.properties),
+                                                                     this.attachments == null ? null : new HashMap<String,Object>(this.attachments));
+        chunk_serialiser.settings           = this.getSettings(context);
+        chunk_serialiser.field_names        = this.field_names;
+        chunk_serialiser.source_encoding    = this.source_encoding;
+        chunk_serialiser.target_encoding    = this.target_encoding;
+        chunk_serialiser.resolve_variatives = this.resolve_variatives;
+        chunk_serialiser.current_level  = this.current_level;
+        chunk_serialiser.level_kinds    = this.level_kinds.clone();
+        chunk_serialiser.parallel_chunk = true;
+        if (this.serialisation_states != null) {
+            chunk_serialiser.serialisation_states = new Stack<State>();
+            chunk_serialiser.serialisation_states.addAll(this.serialisation_states);
+        }
+        return chunk_serialiser;
+    }
+
+    protected StringBuilder getChunk(CallContext context, Future<StringBuilder> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("Interrupted while waiting for parallel JSON serialisation");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException)      { throw (IOException) cause; }
+            if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+            if (cause instanceof Error)            { throw (Error) cause; }
+            throw new IOException(cause);
+        }
+    }
+
+    protected void writeMap(CallContext context, Map map) throws IOException {
+        this.openObject(context, null);
+        for (Map.Entry entry : (Set<Map.Entry>) (map.entrySet())) {
+            this.serialise(context, entry.getValue(), (String) (entry.getKey()));
+        }
+        this.closeObject(context);
+    }
+
+    protected void writeGenericIterable(CallContext context, GenericIterable iterable) throws IOException {
+        int threshold = this.parallel_chunk ? 0 : this.getSettings(context).parallel_threshold;
+        if (threshold > 0) {
+            // the size is unknown, so up to threshold items are read first;
+            // only if there are more, the rest is pulled chunk by chunk
+            Iterator items = iterable.getIterable(context).iterator();
+            List head = new ArrayList();
+            while (head.size() < threshold && items.hasNext()) {
+                head.add(items.next());
+            }
+            if (items.hasNext() == false) {
+                this.writeList(context, head);
+                return;
+            }
+            this.writeListInParallel(context, concat(head.iterator(), items));
+            return;
+        }
+        this.openArray(context, null);
+        for (Object item : iterable.getIterable(context)) {
+            this.serialise(context, item, null);
+        }
+        this.closeArray(context);
+    }
+
+    /**
+       Writes the nodes of a JSONNode as is: a single node as its value, a
+       node set as an array of them and an empty set as null.
+    */
+    protected void writeJSONNode(CallContext context, JSONNode json_node) throws IOException {
+        int count = json_node.getNodeCount(context);
+        if (count == 0) {
+            this.appendable.append("null");
+        } else if (count == 1) {
+            this.writeJsonNode(context, json_node.getJsonNode(context, 0));
+        } else {
             this.openArray(context, null);
-            for (int i=0; i<java.lang.reflect.Array.getLength(object); i++) {
-                this.serialise(context, java.lang.reflect.Array.get(object, i), null);
+            for (int n=0; n<count; n++) {
+                this.serialise(context, json_node.getJsonNode(context, n), null);
             }
             this.closeArray(context);
-        } else if (object instanceof Map) {
+        }
+    }
+
+    /**
+       Walks the Jackson tree, writing scalars directly and members and
+       elements via serialise, so that separators, levels and field name
+       encoding are handled as for any other value. Numbers keep the
+       textual form Jackson gives them, POJO nodes are serialised like
+       their content.
+    */
+    protected void writeJsonNode(CallContext context, JsonNode node) throws IOException {
+        if (node.isObject()) {
             this.openObject(context, null);
-            for (Map.Entry entry : (Set<Map.Entry>) (((Map) object).entrySet())) {
-                this.serialise(context, entry.getValue(), (String) (entry.getKey()));
+            Iterator<Map.Entry<String,JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String,JsonNode> field = fields.next();
+                this.serialise(context, field.getValue(), field.getKey());
             }
             this.closeObject(context);
-        } else if (object instanceof GenericIterable) {
+        } else if (node.isArray()) {
             this.openArray(context, null);
-            for (Object item : ((GenericIterable) object).getIterable(context)) {
-                this.serialise(context, item, null);
+            for (int e=0; e<node.size(); e++) {
+                this.serialise(context, node.get(e), null);
             }
             this.closeArray(context);
-        } else if (    object instanceof Data_MediaObject
-                    && isJSONMedia(context, (Data_MediaObject) object)
-                  ) {
-            InputStream is = ((Data_MediaObject) object).getInputStream(context);
-            if (is == null) {
-                appendable.append("null");
-            } else {
-                FileUtilities.copy(context, is, appendable);
+        } else if (node.isTextual() || node.isBinary()) {
+            this.writeString(context, node.asText());
+        } else if (node.isNumber() || node.isBoolean()) {
+            this.appendable.append(node.asText());
+        } else if (node.isPojo() && ((POJONode) node).getPojo() != null) {
+            Object pojo = ((POJONode) node).getPojo();
+            writers.get(pojo.getClass()).write(context, this, pojo);
+        } else {
+            this.appendable.append("null");
+        }
+    }
+
+    /**
+       Embeds the content of a JSON media object. If writing to a
+       JSONUTF8Sink, the content is taken to be UTF-8 and copied as is,
+       files via their channel, other media objects via their stream.
+    */
+    protected void writeMediaObject(CallContext context, Data_MediaObject media_object) throws IOException {
+        if (this.sink != null && media_object instanceof Data_MediaObject_File) {
+            File file = (File) ((Data_MediaObject_File) media_object).getCurrentFile(context);
+            if (file != null && file.isFile()) {
+                FileInputStream fis = new FileInputStream(file);
+                try {
+                    FileChannel channel = fis.getChannel();
+                    this.sink.transferFrom(channel, 0, channel.size());
+                } finally {
+                    fis.close();
+                }
+                return;
             }
-        } else if (object instanceof Execution) {
-            this.openObject(context, null);
-            Execution execution = (Execution) object;
-            if (object instanceof Execution_BasicSequence) {
-                this.serialise(context, (Object) "ExecutionSequence", "@Class");
-            } else {
-                this.serialise(context, (Object) "Execution", "@Class");
+        }
+        InputStream is = media_object.getInputStream(context);
+        if (is == null) {
+            appendable.append("null");
+        } else if (this.sink != null) {
+            try {
+                this.sink.transferFrom(is);
+            } finally {
+                is.close();
             }
-            this.serialise(context, execution.getProblemState(context), "ProblemState");
-            if (execution.getProblemCategory(context) != null) {
-                this.serialise(context, execution.getProblemCategory(context), "ProblemCategory");
+        } else {
+            FileUtilities.copy(context, is, appendable);
+        }
+    }
+
+    protected void writeExecution(CallContext context, Execution execution) throws IOException {
+        this.openObject(context, null);
+        if (execution instanceof Execution_BasicSequence) {
+            this.serialise(context, (Object) "ExecutionSequence", "@Class");
+        } else {
+            this.serialise(context, (Object) "Execution", "@Class");
+        }
+        this.serialise(context, execution.getProblemState(context), "ProblemState");
+        if (execution.getProblemCategory(context) != null) {
+            this.serialise(context, execution.getProblemCategory(context), "ProblemCategory");
+        }
+        this.serialise(context, execution.getActivityState(context), "ActivityState");
+        if (execution.getInstruction(context) != null) {
+            this.serialise(context, execution.getInstruction(context), "Instruction");
+        }
+        if (execution.getProgression(context) != null) {
+            this.serialise(context, execution.getProgression(context), "Progression");
+        }
+        if (execution.getProblemState(context) != null && execution.getProblemState(context).isOk(context) == false) {
+            if (execution.getProblem(context) != null) {
+                this.serialise(context, execution.getProblem(context), "Problem");
             }
-            this.serialise(context, execution.getActivityState(context), "ActivityState");
-            if (execution.getInstruction(context) != null) {
-                this.serialise(context, execution.getInstruction(context), "Instruction");
+            if (execution.getRecord(context) != null) {
+                this.serialise(context, execution.getRecord(context), "Record");
             }
-            if (execution.getProgression(context) != null) {
-                this.serialise(context, execution.getProgression(context), "Progression");
+            if (execution.getPerformance(context) != null) {
+                this.serialise(context, execution.getPerformance(context), "Performance");
             }
-            if (execution.getProblemState(context) != null && execution.getProblemState(context).isOk(context) == false) {
-                if (execution.getProblem(context) != null) {
-                    this.serialise(context, execution.getProblem(context), "Problem");
-                }
-                if (execution.getRecord(context) != null) {
-                    this.serialise(context, execution.getRecord(context), "Record");
-                }
-                if (execution.getPerformance(context) != null) {
-                    this.serialise(context, execution.getPerformance(context), "Performance");
-                }
-                if (object instanceof Execution_BasicSequence) {
-                    this.openArray(context, "Executions");
-                    for (Execution e : ((Execution_BasicSequence) object).getExecutions(context)) {
-                        this.serialise(context, e, null);
-                    }
-                    this.closeArray(context);
+            if (execution instanceof Execution_BasicSequence) {
+                this.openArray(context, "Executions");
+                for (Execution e : ((Execution_BasicSequence) execution).getExecutions(context)) {
+                    this.serialise(context, e, null);
                 }
-            }
-            this.closeObject(context);
-        } else {
-            if (object instanceof JSONSerialisable) {
-                JSONSerialisable jsons = (JSONSerialisable) object;
-
-                jsons.jsonSerialise(context, this);
-            } else {
-                appendable.append('"');
-                appendable.append(Encoding.recode(context, MessageTextClass.convertToString(context, object), Encoding.UTF8, Encoding.JSON));
-                appendable.append('"');
+                this.closeArray(context);
             }
         }
-
-        this.named = false;
-        this.first = false;
+        this.closeObject(context);
     }
 
     protected boolean isJSONMedia(CallContext context, Data_MediaObject dmo) {
         String mt = dmo.getMediaType(context);
         return (    mt != null
-                 && mt.matches("^(text|application)/json$")
+                 && (    mt.equals("application/json")
+                      || mt.equals("text/json")
+                    )
                ) ? true: false;
     }
 
     protected int current_level;
 
+    /**
+       One bit per open container, set if it is an object, indexed by
+       level - 1.
+    */
+    protected long[] level_kinds = new long[1];
+
     public int  getCurrentLevel(CallContext context) {
         return this.current_level;
     }
 
+    protected void pushLevel(CallContext context, boolean is_object) {
+        int level = this.current_level++;
+        if (JSONSerialiserMetrics.enabled) { JSONSerialiserMetrics.recordDepth(this.current_level); }
+        int index = level >>> 6;
+        if (index == this.level_kinds.length) {
+            this.level_kinds = java.util.Arrays.copyOf(this.level_kinds, index * 2);
+        }
+        if (is_object) {
+            this.level_kinds[index] |= (1L << level);
+        } else {
+            this.level_kinds[index] &= ~(1L << level);
+        }
+    }
+
+    protected void popLevel(CallContext context, boolean is_object) {
+        if (this.current_level == 0) {
+            CustomaryContext.create((Context) context).throwPreConditionViolation(context, "JSONSerialiser closes %(kind), but no container is open", "kind", is_object ? "object" : "array");
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        int level = this.current_level - 1;
+        boolean open_is_object = (this.level_kinds[level >>> 6] & (1L << level)) != 0;
+        if (open_is_object != is_object) {
+            CustomaryContext.create((Context) context).throwPreConditionViolation(context, "JSONSerialiser closes %(kind), but innermost open container is an %(open)", "kind", is_object ? "object" : "array", "open", open_is_object ? "object" : "array");
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.current_level = level;
+    }
+
     protected Map<String,String> properties;
 
     protected String getProperty(CallContext context, String name) {
@@ -434,13 +1258,11 @@ public class JSONSerialiserImpl implements JSONSerialiser {
     }
 
     public boolean getProperty(CallContext context, String name, boolean default_value) {
-        String property = this.getProperty(context, name);
-        return (property == null ? default_value : Boolean.parseBoolean(property));
+        return this.getSettings(context).getBoolean(context, name, default_value);
     }
 
     public int getProperty(CallContext context, String name, int default_value) {
-        String property = this.getProperty(context, name);
-        return (property == null ? default_value : Integer.parseInt(property));
+        return this.getSettings(context).getInt(context, name, default_value);
     }
 
     public String getProperty(CallContext context, String name, String default_value) {
@@ -449,36 +1271,59 @@ public class JSONSerialiserImpl implements JSONSerialiser {
     }
 
     public String setProperty(CallContext context, String name, String value) {
+        JSONSerialiserSettings settings = this.getSettings(context);
         if (this.properties == null) {
             this.properties = new HashMap<String,String>();
         }
+        this.settings = settings.derive(context, name, value);
         return this.properties.put(name, value);
     }
 
-    protected Stack<Map<String,String>> property_stack;
+    /**
+       What popProperties restores: the previous values of the pushed
+       properties as name value pairs and the previous settings.
+    */
+    static protected class PropertyFrame {
+        protected String[]               previous;
+        protected JSONSerialiserSettings settings;
+    }
+
+    protected Stack<PropertyFrame> property_stack;
 
     public void pushProperties(CallContext context, String... properties) {
         if (this.property_stack == null) {
-            this.property_stack = new Stack<Map<String,String>>();
+            this.property_stack = new Stack<PropertyFrame>();
         }
-        Map<String,String> map = new HashMap<String,String>();
-        if (properties != null) {
+        PropertyFrame frame = new PropertyFrame();
+        frame.settings = this.getSettings(context);
+        if (properties != null && properties.length != 0) {
+            if (this.properties == null) {
+                this.properties = new HashMap<String,String>();
+            }
+            frame.previous = new String[properties.length];
             for (int i=0; i<properties.length; i+=2) {
                 String name = properties[i];
                 if (name != null) {
-                    String previous = this.setProperty(context, name, properties[i+1]);
-                    map.put(name, previous);
+                    frame.previous[i]   = name;
+                    frame.previous[i+1] = this.properties.put(name, properties[i+1]);
                 }
             }
+            this.settings = frame.settings.derive(context, properties);
         }
-        this.property_stack.push(map);
+        this.property_stack.push(frame);
     }
 
     public void popProperties (CallContext context) {
-        Map<String,String> map = this.property_stack.pop();
-        for (Map.Entry<String,String> entry : map.entrySet()) {
-            this.setProperty(context, entry.getKey(), entry.getValue());
+        PropertyFrame frame = this.property_stack.pop();
+        if (frame.previous != null) {
+            // backwards, so that a name pushed twice gets its original value
+            for (int i=frame.previous.length-2; i>=0; i-=2) {
+                if (frame.previous[i] != null) {
+                    this.properties.put(frame.previous[i], frame.previous[i+1]);
+                }
+            }
         }
+        this.settings = frame.settings;
     }
 
     protected Map<String,Object> attachments;
@@ -545,8 +1390,10 @@ public class JSONSerialiserImpl implements JSONSerialiser {
     }
 
     static protected Map makeMap(CallContext context, String... arguments) {
-        Map<String,String> parameters = new HashMap<String,String>();
-        
+        return fillMap(context, new HashMap<String,String>(), arguments);
+    }
+
+    static protected Map fillMap(CallContext context, Map<String,String> parameters, String... arguments) {
         if (arguments != null) {
             if (arguments.length % 2 != 0) {
                 CustomaryContext.create((Context) context).throwPreConditionViolation(context, "Setup of JSONSerialiser with variable arguments failed, number of property arguments is uneven");
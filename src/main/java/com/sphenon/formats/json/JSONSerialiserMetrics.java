@@ -0,0 +1,269 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.state.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+   Process wide statistics of JSONSerialiserImpl, collected only while
+   enabled. All counters are striped (LongAdder), so recording does not
+   contend between threads.
+
+   Recorded are the serialisers created, the top level serialisations with
+   a histogram of their output size, the values written per class, the
+   time spent in JSONSerialisable.jsonSerialise per implementing class
+   with a histogram of the durations, and the maximum nesting depth.
+   Output sizes are counted in bytes for byte sinks and in characters
+   for StringBuilders; other Appendables are not measured. Times are
+   inclusive, i.e. contain the time of nested JSONSerialisables.
+
+   Histograms have one bucket per power of two, bucket n counting values
+   from 2^(n-1) up to 2^n - 1.
+
+   The collected data can be retrieved via the getters or sent as a trace
+   via dump, which is done if MONITORING is enabled for this class.
+
+   @configuration com.sphenon.formats.json.JSONSerialiserMetrics.Enabled if true, metrics are collected
+                                                                         from startup on (default false)
+*/
+public class JSONSerialiserMetrics {
+    static final public Class _class = JSONSerialiserMetrics.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected volatile boolean enabled = config.get(RootContext.getInitialisationContext(), "Enabled", false);
+
+    static public boolean isEnabled() {
+        return enabled;
+    }
+
+    static public void setEnabled(CallContext context, boolean new_enabled) {
+        enabled = new_enabled;
+    }
+
+    static public class Histogram {
+        protected LongAdder[] buckets;
+
+        public Histogram() {
+            this.buckets = new LongAdder[65];
+            for (int b=0; b<this.buckets.length; b++) {
+                this.buckets[b] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            this.buckets[value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value)].increment();
+        }
+
+        /**
+           @return the counts per bucket, up to the highest non empty one
+        */
+        public long[] getCounts() {
+            int length = 0;
+            long[] counts = new long[this.buckets.length];
+            for (int b=0; b<counts.length; b++) {
+                counts[b] = this.buckets[b].sum();
+                if (counts[b] != 0) { length = b + 1; }
+            }
+            return java.util.Arrays.copyOf(counts, length);
+        }
+
+        public void reset() {
+            for (LongAdder bucket : this.buckets) {
+                bucket.reset();
+            }
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            long[] counts = this.getCounts();
+            for (int b=0; b<counts.length; b++) {
+                if (counts[b] == 0) { continue; }
+                if (sb.length() != 0) { sb.append(' '); }
+                sb.append("<2^").append(b).append(':').append(counts[b]);
+            }
+            return sb.toString();
+        }
+    }
+
+    static public class TypeStatistics {
+        protected Class     type;
+        protected LongAdder values    = new LongAdder();
+        protected LongAdder nanos     = new LongAdder();
+        protected Histogram durations;
+
+        protected TypeStatistics(Class type) {
+            this.type = type;
+        }
+
+        public Class getType() {
+            return this.type;
+        }
+
+        public long getValues() {
+            return this.values.sum();
+        }
+
+        /**
+           @return the total time spent in jsonSerialise, for JSONSerialisables only
+        */
+        public long getNanos() {
+            return this.nanos.sum();
+        }
+
+        /**
+           @return the histogram of jsonSerialise durations in nanoseconds,
+                   or null if the type is not JSONSerialisable
+        */
+        public Histogram getDurations() {
+            return this.durations;
+        }
+    }
+
+    static protected LongAdder       instances      = new LongAdder();
+    static protected LongAdder       serialisations = new LongAdder();
+    static protected LongAdder       output_size    = new LongAdder();
+    static protected Histogram       output_sizes   = new Histogram();
+    static protected LongAccumulator max_depth      = new LongAccumulator(Math::max, 0);
+
+    static protected ConcurrentHashMap<Class,TypeStatistics> types = new ConcurrentHashMap<Class,TypeStatistics>();
+
+    static protected TypeStatistics getTypeStatistics(Class type) {
+        TypeStatistics statistics = types.get(type);
+        if (statistics == null) {
+            statistics = new TypeStatistics(type);
+            if (JSONSerialisable.class.isAssignableFrom(type)) {
+                statistics.durations = new Histogram();
+            }
+            TypeStatistics existing = types.putIfAbsent(type, statistics);
+            if (existing != null) {
+                statistics = existing;
+            }
+        }
+        return statistics;
+    }
+
+    static public void recordInstance() {
+        instances.increment();
+    }
+
+    static public void recordSerialisation(long size) {
+        serialisations.increment();
+        if (size >= 0) {
+            output_size.add(size);
+            output_sizes.record(size);
+        }
+    }
+
+    static public void recordValue(Class type) {
+        getTypeStatistics(type).values.increment();
+    }
+
+    static public void recordSerialisable(Class type, long nanos) {
+        TypeStatistics statistics = getTypeStatistics(type);
+        statistics.nanos.add(nanos);
+        statistics.durations.record(nanos);
+    }
+
+    static public void recordDepth(int depth) {
+        max_depth.accumulate(depth);
+    }
+
+    static public long getInstances(CallContext context) {
+        return instances.sum();
+    }
+
+    static public long getSerialisations(CallContext context) {
+        return serialisations.sum();
+    }
+
+    static public long getOutputSize(CallContext context) {
+        return output_size.sum();
+    }
+
+    static public Histogram getOutputSizes(CallContext context) {
+        return output_sizes;
+    }
+
+    static public long getMaximumDepth(CallContext context) {
+        return max_depth.get();
+    }
+
+    static public Map<Class,TypeStatistics> getTypeStatistics(CallContext context) {
+        return Collections.<Class,TypeStatistics>unmodifiableMap(types);
+    }
+
+    static public void reset(CallContext context) {
+        instances.reset();
+        serialisations.reset();
+        output_size.reset();
+        output_sizes.reset();
+        max_depth.reset();
+        types.clear();
+    }
+
+    /**
+       @return a multi line report, types ordered by time spent and
+               number of values
+    */
+    static public String getReport(CallContext context) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("JSON serialisation: ").append(getSerialisations(context)).append(" serialisations, ")
+          .append(getOutputSize(context)).append(" bytes/chars, ")
+          .append(getInstances(context)).append(" serialisers created, maximum depth ")
+          .append(getMaximumDepth(context)).append('\n');
+        sb.append("  output sizes: ").append(output_sizes).append('\n');
+
+        List<TypeStatistics> sorted = new ArrayList<TypeStatistics>(types.values());
+        Collections.sort(sorted, new Comparator<TypeStatistics>() {
+            public int compare(TypeStatistics ts1, TypeStatistics ts2) {
+                int result = Long.compare(ts2.getNanos(), ts1.getNanos());
+                return result != 0 ? result : Long.compare(ts2.getValues(), ts1.getValues());
+            }
+        });
+        for (TypeStatistics statistics : sorted) {
+            sb.append("  ").append(statistics.type.getName()).append(": ").append(statistics.getValues()).append(" values");
+            if (statistics.durations != null) {
+                sb.append(", ").append(statistics.getNanos() / 1000000L).append(" ms, durations ns ").append(statistics.durations);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    static public void dump(CallContext context) {
+        if ((notification_level & Notifier.MONITORING) != 0) { CustomaryContext.create((Context)context).sendTrace(context, Notifier.MONITORING, "%(report)", "report", getReport(context)); }
+    }
+}
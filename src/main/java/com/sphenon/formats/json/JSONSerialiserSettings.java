@@ -0,0 +1,239 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.configuration.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+   Immutable, typed view of the properties of a JSONSerialiserImpl. The
+   properties used by the serialiser itself are available as getters,
+   all others can be retrieved via getBoolean, getInt and getString, which
+   parse each value only once.
+
+   Settings for a property array passed to the static serialise methods
+   are kept in a bounded cache, see get; settings derived from others, as
+   by JSONSerialiserImpl.pushProperties, in a bounded cache per settings
+   object, see derive. So recurring property changes during serialisation
+   do not create new settings each time. If a cache is full, its least
+   recently used settings are evicted.
+
+   @configuration com.sphenon.formats.json.JSONSerialiserSettings.CacheSize maximum number of cached
+                                                                            settings, globally and per
+                                                                            derived settings (default 256)
+*/
+public class JSONSerialiserSettings {
+    static final public Class _class = JSONSerialiserSettings.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected int cache_size = config.get(RootContext.getInitialisationContext(), "CacheSize", 256);
+
+    static protected LinkedHashMap<List<String>,JSONSerialiserSettings> cache = createCache();
+
+    // access ordered, so the eldest entry is the least recently used
+    static protected LinkedHashMap<List<String>,JSONSerialiserSettings> createCache() {
+        return new LinkedHashMap<List<String>,JSONSerialiserSettings>(16, 0.75f, true);
+    }
+
+    static protected JSONSerialiserSettings lookup(LinkedHashMap<List<String>,JSONSerialiserSettings> cache, String[] properties) {
+        synchronized (cache) {
+            return cache.get(Arrays.asList(properties));
+        }
+    }
+
+    static protected void store(LinkedHashMap<List<String>,JSONSerialiserSettings> cache, String[] properties, JSONSerialiserSettings settings) {
+        synchronized (cache) {
+            // copy, since the caller may modify its array
+            cache.put(Arrays.asList(properties.clone()), settings);
+            if (cache.size() > cache_size) {
+                Iterator<List<String>> eldest = cache.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    static protected JSONSerialiserSettings empty;
+
+    /**
+       @param properties name value pairs as passed to JSONSerialiserImpl
+       @return the settings, shared between all callers passing equal arrays
+    */
+    static public JSONSerialiserSettings get(CallContext context, String... properties) {
+        if (properties == null || properties.length == 0) {
+            JSONSerialiserSettings settings = empty;
+            if (settings == null) {
+                empty = settings = new JSONSerialiserSettings(context, Collections.<String,String>emptyMap());
+            }
+            return settings;
+        }
+        JSONSerialiserSettings settings = lookup(cache, properties);
+        if (settings == null) {
+            settings = new JSONSerialiserSettings(context, JSONSerialiserImpl.makeMap(context, properties));
+            store(cache, properties, settings);
+        }
+        return settings;
+    }
+
+    protected Map<String,String>                properties;
+    protected ConcurrentHashMap<String,Boolean> booleans;
+    protected ConcurrentHashMap<String,Integer> integers;
+
+    protected volatile LinkedHashMap<List<String>,JSONSerialiserSettings> derived;
+
+    protected String         wrap_within;
+    protected String         source_encoding;
+    protected String         target_encoding;
+    protected JSONFieldNames field_names;
+    protected boolean        resolve_variatives;
+    protected boolean        byte_array_base64;
+    protected int            parallel_threshold;
+    protected int            parallel_chunk_size;
+
+    /**
+       @param properties the properties, which must not be modified afterwards
+    */
+    public JSONSerialiserSettings (CallContext context, Map<String,String> properties) {
+        this.properties         = properties;
+        this.booleans           = new ConcurrentHashMap<String,Boolean>();
+        this.integers           = new ConcurrentHashMap<String,Integer>();
+        this.wrap_within        = properties.get("json-wrap-within");
+        this.source_encoding    = properties.get("json-source-encoding");
+        this.target_encoding    = properties.get("json-target-encoding");
+        this.field_names        = JSONFieldNames.get(context, this.source_encoding, this.target_encoding);
+        this.resolve_variatives = this.getBoolean(context, "json-resolve-variatives", false);
+        this.byte_array_base64  = "base64".equals(properties.get("json-byte-array-encoding"));
+        this.parallel_threshold  = this.getInt(context, "json-parallel-threshold", 0);
+        this.parallel_chunk_size = Math.max(1, this.getInt(context, "json-parallel-chunk-size", 1024));
+    }
+
+    /**
+       @param properties name value pairs to change, a null value removes
+                         the property
+       @return settings equal to these except for the given properties;
+               the same instance for equal arrays, as long as it is cached
+    */
+    public JSONSerialiserSettings derive(CallContext context, String... properties) {
+        if (properties == null || properties.length == 0) {
+            return this;
+        }
+        LinkedHashMap<List<String>,JSONSerialiserSettings> derived = this.derived;
+        if (derived == null) {
+            this.derived = derived = createCache();
+        }
+        JSONSerialiserSettings settings = lookup(derived, properties);
+        if (settings == null) {
+            Map<String,String> changed = new HashMap<String,String>(this.properties);
+            for (int i=0; i<properties.length; i+=2) {
+                if (properties[i] == null) { continue; }
+                if (properties[i+1] == null) {
+                    changed.remove(properties[i]);
+                } else {
+                    changed.put(properties[i], properties[i+1]);
+                }
+            }
+            settings = new JSONSerialiserSettings(context, changed);
+            store(derived, properties, settings);
+        }
+        return settings;
+    }
+
+    public String getWrapWithin(CallContext context) {
+        return this.wrap_within;
+    }
+
+    public String getSourceEncoding(CallContext context) {
+        return this.source_encoding;
+    }
+
+    public String getTargetEncoding(CallContext context) {
+        return this.target_encoding;
+    }
+
+    /**
+       @return the field names for the encodings of these settings; a
+               serialiser uses those of the settings it was constructed
+               with, see JSONSerialiserImpl.getSettings
+    */
+    public JSONFieldNames getFieldNames(CallContext context) {
+        return this.field_names;
+    }
+
+    public boolean getResolveVariatives(CallContext context) {
+        return this.resolve_variatives;
+    }
+
+    public boolean getByteArrayBase64(CallContext context) {
+        return this.byte_array_base64;
+    }
+
+    /**
+       @return the minimum number of elements of a list to be serialised in
+               parallel, or 0 if parallel serialisation is disabled
+    */
+    public int getParallelThreshold(CallContext context) {
+        return this.parallel_threshold;
+    }
+
+    public int getParallelChunkSize(CallContext context) {
+        return this.parallel_chunk_size;
+    }
+
+    public String getString(CallContext context, String name, String default_value) {
+        String property = this.properties.get(name);
+        return (property == null ? default_value : property);
+    }
+
+    public boolean getBoolean(CallContext context, String name, boolean default_value) {
+        Boolean value = this.booleans.get(name);
+        if (value == null) {
+            String property = this.properties.get(name);
+            if (property == null) { return default_value; }
+            value = Boolean.parseBoolean(property);
+            this.booleans.put(name, value);
+        }
+        return value;
+    }
+
+    public int getInt(CallContext context, String name, int default_value) {
+        Integer value = this.integers.get(name);
+        if (value == null) {
+            String property = this.properties.get(name);
+            if (property == null) { return default_value; }
+            value = Integer.parseInt(property);
+            this.integers.put(name, value);
+        }
+        return value;
+    }
+}
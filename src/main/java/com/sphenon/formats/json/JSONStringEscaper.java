@@ -0,0 +1,116 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import java.io.IOException;
+
+/**
+   Writes the contents of JSON string literals. Quotation mark, reverse
+   solidus and control characters are escaped, all other characters are
+   passed through unmodified.
+
+   Runs of characters that need no escaping are appended as a whole via
+   Appendable.append(CharSequence, int, int), so strings without special
+   characters are written without any allocation.
+*/
+public class JSONStringEscaper {
+
+    static protected final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+       For each ASCII character: 0 if it is written as is, the character
+       following the reverse solidus for short escapes, or 'u' for
+       characters that are written as \\u00XX.
+    */
+    static protected final char[] ESCAPES = new char[128];
+    static {
+        for (int c=0; c<0x20; c++) {
+            ESCAPES[c] = 'u';
+        }
+        ESCAPES['"']  = '"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['\t'] = 't';
+    };
+
+    static public boolean needsEscaping(char c) {
+        return c < 128 && ESCAPES[c] != 0;
+    }
+
+    /**
+       @return the index of the first character in string that needs
+               escaping, or -1 if there is none
+    */
+    static public int indexOfEscape(CharSequence string) {
+        int length = string.length();
+        for (int i=0; i<length; i++) {
+            char c = string.charAt(i);
+            if (c < 128 && ESCAPES[c] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static public void escape(Appendable appendable, CharSequence string) throws IOException {
+        int length = string.length();
+        int start  = 0;
+        for (int i=0; i<length; i++) {
+            char c = string.charAt(i);
+            if (c < 128 && ESCAPES[c] != 0) {
+                if (i > start) {
+                    appendable.append(string, start, i);
+                }
+                appendEscape(appendable, c);
+                start = i + 1;
+            }
+        }
+        if (start == 0) {
+            appendable.append(string);
+        } else if (start < length) {
+            appendable.append(string, start, length);
+        }
+    }
+
+    static public void escape(Appendable appendable, char c) throws IOException {
+        if (c < 128 && ESCAPES[c] != 0) {
+            appendEscape(appendable, c);
+        } else {
+            appendable.append(c);
+        }
+    }
+
+    /**
+       Writes string as a quoted JSON string literal.
+    */
+    static public void quote(Appendable appendable, CharSequence string) throws IOException {
+        appendable.append('"');
+        escape(appendable, string);
+        appendable.append('"');
+    }
+
+    static protected void appendEscape(Appendable appendable, char c) throws IOException {
+        char escape = ESCAPES[c];
+        appendable.append('\\');
+        if (escape == 'u') {
+            appendable.append('u').append('0').append('0').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+        } else {
+            appendable.append(escape);
+        }
+    }
+}
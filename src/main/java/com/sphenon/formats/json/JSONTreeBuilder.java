@@ -0,0 +1,398 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+
+import com.sphenon.formats.json.returncodes.*;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+   Builds the plain Java representation of a JSON document, as returned by
+   JSONNode.toTree, directly from the token stream, without an intermediate
+   Jackson tree.
+
+   Values of a container are first collected in a scratch stack shared by
+   all nesting levels, so each List and Map is created with its final size.
+   Integral numbers become Long, floating point numbers Double.
+
+   Maps are HashMaps by default; LINKED keeps the member order of the
+   document, COMPACT yields immutable, array backed maps with a small
+   footprint. If primitive lists are requested, arrays consisting only of
+   integral or only of floating point numbers are returned as fixed size
+   lists backed by a long[] or double[], see LongList and DoubleList.
+
+   Empty input, or input consisting only of whitespace, is not valid
+   JSON and rejected with InvalidJSON, as by JSONNode.
+
+   A builder is not thread safe, but may be reused sequentially.
+*/
+public class JSONTreeBuilder {
+
+    static public enum MapMode { HASH, LINKED, COMPACT };
+
+    protected MapMode     map_mode;
+    protected boolean     primitive_lists;
+    protected JsonFactory factory;
+
+    protected Object[]    scratch;
+    protected int         top;
+
+    public JSONTreeBuilder (CallContext context) {
+        this(context, MapMode.HASH, false);
+    }
+
+    public JSONTreeBuilder (CallContext context, MapMode map_mode, boolean primitive_lists) {
+        this(context, map_mode, primitive_lists, JSONMapperRegistry.getProfile(context));
+    }
+
+    public JSONTreeBuilder (CallContext context, MapMode map_mode, boolean primitive_lists, JSONMapperProfile profile) {
+        this.map_mode        = map_mode == null ? MapMode.HASH : map_mode;
+        this.primitive_lists = primitive_lists;
+        this.factory         = profile.getFactory(context);
+        this.scratch         = new Object[64];
+    }
+
+    public Object build(CallContext context, String json_string) throws InvalidJSON {
+        try {
+            return this.build(context, this.factory.createParser(json_string));
+        } catch (IOException ioe) {
+            InvalidJSON.createAndThrow(context, ioe, "Cannot parse JSON string");
+            throw (InvalidJSON) null; // compiler insists
+        }
+    }
+
+    public Object build(CallContext context, InputStream input_stream) throws InvalidJSON {
+        try {
+            return this.build(context, this.factory.createParser(input_stream));
+        } catch (IOException ioe) {
+            InvalidJSON.createAndThrow(context, ioe, "Cannot parse JSON stream");
+            throw (InvalidJSON) null; // compiler insists
+        }
+    }
+
+    protected Object build(CallContext context, JsonParser parser) throws IOException {
+        this.top = 0;
+        try {
+            if (parser.nextToken() == null) {
+                throw new JsonParseException("No content to parse", parser.getCurrentLocation());
+            }
+            return this.parseValue(parser, parser.getCurrentToken());
+        } finally {
+            parser.close();
+            // do not keep references to the last document
+            java.util.Arrays.fill(this.scratch, 0, this.top, null);
+            this.top = 0;
+        }
+    }
+
+    protected void push(Object value) {
+        if (this.top == this.scratch.length) {
+            this.scratch = java.util.Arrays.copyOf(this.scratch, this.scratch.length * 2);
+        }
+        this.scratch[this.top++] = value;
+    }
+
+    protected Object parseValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case START_OBJECT:       return this.parseObject(parser);
+            case START_ARRAY:        return this.parseArray(parser);
+            case VALUE_STRING:       return parser.getText();
+            case VALUE_NUMBER_INT:   return this.getLong(parser);
+            case VALUE_NUMBER_FLOAT: return parser.getDoubleValue();
+            case VALUE_TRUE:         return Boolean.TRUE;
+            case VALUE_FALSE:        return Boolean.FALSE;
+            default:                 return null;
+        }
+    }
+
+    protected long getLong(JsonParser parser) throws IOException {
+        return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER ? parser.getBigIntegerValue().longValue() : parser.getLongValue();
+    }
+
+    protected Object parseObject(JsonParser parser) throws IOException {
+        int start = this.top;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            this.push(name);
+            this.push(this.parseValue(parser, parser.nextToken()));
+        }
+        int count = (this.top - start) / 2;
+        Map<String,Object> map;
+        if (this.map_mode == MapMode.COMPACT) {
+            map = new CompactMap(this.scratch, start, count);
+        } else {
+            int capacity = count < 3 ? count + 1 : (int) (count / 0.75f) + 1;
+            map = (this.map_mode == MapMode.LINKED ? new LinkedHashMap<String,Object>(capacity) : new HashMap<String,Object>(capacity));
+            for (int i=start; i<this.top; i+=2) {
+                map.put((String) this.scratch[i], this.scratch[i+1]);
+            }
+        }
+        java.util.Arrays.fill(this.scratch, start, this.top, null);
+        this.top = start;
+        return map;
+    }
+
+    protected Object parseArray(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (this.primitive_lists) {
+            if (token == JsonToken.VALUE_NUMBER_INT) {
+                return this.parseLongArray(parser);
+            }
+            if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                return this.parseDoubleArray(parser);
+            }
+        }
+        return this.parseArray(parser, token, this.top);
+    }
+
+    /**
+       Collects the remaining elements, the current token being the first
+       of them, and builds the list from all elements on the scratch stack
+       above start.
+    */
+    protected List<Object> parseArray(JsonParser parser, JsonToken token, int start) throws IOException {
+        while (token != JsonToken.END_ARRAY) {
+            this.push(this.parseValue(parser, token));
+            token = parser.nextToken();
+        }
+        ArrayList<Object> list = new ArrayList<Object>(this.top - start);
+        for (int i=start; i<this.top; i++) {
+            list.add(this.scratch[i]);
+        }
+        java.util.Arrays.fill(this.scratch, start, this.top, null);
+        this.top = start;
+        return list;
+    }
+
+    protected List parseLongArray(JsonParser parser) throws IOException {
+        long[] values = new long[16];
+        int count = 0;
+        JsonToken token = parser.getCurrentToken();
+        while (token == JsonToken.VALUE_NUMBER_INT) {
+            if (count == values.length) { values = java.util.Arrays.copyOf(values, count * 2); }
+            values[count++] = this.getLong(parser);
+            token = parser.nextToken();
+        }
+        if (token == JsonToken.END_ARRAY) {
+            return new LongList(count == values.length ? values : java.util.Arrays.copyOf(values, count));
+        }
+        // not homogeneous, continue generically
+        int start = this.top;
+        for (int i=0; i<count; i++) {
+            this.push(values[i]);
+        }
+        return this.parseArray(parser, token, start);
+    }
+
+    protected List parseDoubleArray(JsonParser parser) throws IOException {
+        double[] values = new double[16];
+        int count = 0;
+        JsonToken token = parser.getCurrentToken();
+        while (token == JsonToken.VALUE_NUMBER_FLOAT) {
+            if (count == values.length) { values = java.util.Arrays.copyOf(values, count * 2); }
+            values[count++] = parser.getDoubleValue();
+            token = parser.nextToken();
+        }
+        if (token == JsonToken.END_ARRAY) {
+            return new DoubleList(count == values.length ? values : java.util.Arrays.copyOf(values, count));
+        }
+        int start = this.top;
+        for (int i=0; i<count; i++) {
+            this.push(values[i]);
+        }
+        return this.parseArray(parser, token, start);
+    }
+
+    /**
+       Fixed size list of Long backed by a long[].
+    */
+    static public class LongList extends AbstractList<Long> implements RandomAccess {
+        protected long[] values;
+
+        public LongList(long[] values) {
+            this.values = values;
+        }
+
+        public long getLong(int index) {
+            return this.values[index];
+        }
+
+        public long[] toLongArray() {
+            return this.values.clone();
+        }
+
+        public Long get(int index) {
+            return this.values[index];
+        }
+
+        public Long set(int index, Long value) {
+            long old = this.values[index];
+            this.values[index] = value;
+            return old;
+        }
+
+        public int size() {
+            return this.values.length;
+        }
+    }
+
+    /**
+       Fixed size list of Double backed by a double[].
+    */
+    static public class DoubleList extends AbstractList<Double> implements RandomAccess {
+        protected double[] values;
+
+        public DoubleList(double[] values) {
+            this.values = values;
+        }
+
+        public double getDouble(int index) {
+            return this.values[index];
+        }
+
+        public double[] toDoubleArray() {
+            return this.values.clone();
+        }
+
+        public Double get(int index) {
+            return this.values[index];
+        }
+
+        public Double set(int index, Double value) {
+            double old = this.values[index];
+            this.values[index] = value;
+            return old;
+        }
+
+        public int size() {
+            return this.values.length;
+        }
+    }
+
+    /**
+       Immutable map keeping keys and values in two arrays in document
+       order. Small maps are searched linearly, larger ones through an open
+       addressing index. Later duplicates of a key replace earlier ones.
+    */
+    static public class CompactMap extends AbstractMap<String,Object> {
+        static protected final int LINEAR_LIMIT = 8;
+
+        protected String[] keys;
+        protected Object[] values;
+        protected int      size;
+        protected int[]    table;
+
+        protected CompactMap(Object[] scratch, int start, int count) {
+            this.keys   = new String[count];
+            this.values = new Object[count];
+            if (count > LINEAR_LIMIT) {
+                this.table = new int[Integer.highestOneBit(count * 2 - 1) << 1];
+            }
+            for (int i=0; i<count; i++) {
+                String key   = (String) scratch[start + 2*i];
+                Object value = scratch[start + 2*i + 1];
+                int index = this.indexOf(key);
+                if (index != -1) {
+                    this.values[index] = value;
+                    continue;
+                }
+                this.keys[this.size]   = key;
+                this.values[this.size] = value;
+                if (this.table != null) {
+                    int mask = this.table.length - 1;
+                    int slot = key.hashCode() & mask;
+                    while (this.table[slot] != 0) { slot = (slot + 1) & mask; }
+                    this.table[slot] = this.size + 1;
+                }
+                this.size++;
+            }
+        }
+
+        protected int indexOf(Object key) {
+            if (key == null) { return -1; }
+            if (this.table == null) {
+                for (int i=0; i<this.size; i++) {
+                    if (this.keys[i].equals(key)) { return i; }
+                }
+                return -1;
+            }
+            int mask = this.table.length - 1;
+            int slot = key.hashCode() & mask;
+            int entry;
+            while ((entry = this.table[slot]) != 0) {
+                if (this.keys[entry - 1].equals(key)) { return entry - 1; }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public boolean containsKey(Object key) {
+            return this.indexOf(key) != -1;
+        }
+
+        public Object get(Object key) {
+            int index = this.indexOf(key);
+            return index == -1 ? null : this.values[index];
+        }
+
+        public Set<Map.Entry<String,Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String,Object>>() {
+                public int size() {
+                    return CompactMap.this.size;
+                }
+                public Iterator<Map.Entry<String,Object>> iterator() {
+                    return new Iterator<Map.Entry<String,Object>>() {
+                        protected int index = 0;
+                        public boolean hasNext() {
+                            return this.index < CompactMap.this.size;
+                        }
+                        public Map.Entry<String,Object> next() {
+                            if (this.index >= CompactMap.this.size) { throw new NoSuchElementException(); }
+                            int i = this.index++;
+                            return new AbstractMap.SimpleImmutableEntry<String,Object>(CompactMap.this.keys[i], CompactMap.this.values[i]);
+                        }
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.configuration.*;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+   An Appendable that encodes characters directly to UTF-8 into a byte
+   buffer, which is passed on to an OutputStream or WritableByteChannel
+   whenever it is full. Without such a target, all output is kept in
+   memory and can be retrieved via toByteArray or writeTo.
+
+   ASCII characters are stored with a single comparison each; surrogate
+   pairs may be split across calls, unpaired surrogates are written as
+   '?'.
+
+   With a flush threshold set, the target stream is flushed each time at
+   least that many bytes have been passed on since the last flush, so
+   that e.g. a network response is sent in portions of a known size
+   instead of being held back by buffering further down.
+
+   Buffers are taken from a bounded, process wide pool; close() returns
+   the buffer to the pool after flushing, but does not close the target.
+   abort() returns it without passing anything further on, e.g. if
+   serialisation failed, so that nothing reaches the target unless the
+   buffer had been filled before.
+   A sink must not be used after it has been closed, in memory output
+   has to be retrieved before.
+
+   @configuration com.sphenon.formats.json.JSONUTF8Sink.BufferSizeKB size of the pooled buffers (default 16)
+   @configuration com.sphenon.formats.json.JSONUTF8Sink.PoolSize     maximum number of pooled buffers (default 64)
+*/
+public class JSONUTF8Sink implements Appendable, Flushable, Closeable {
+    static final public Class _class = JSONUTF8Sink.class;
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected int buffer_size = config.get(RootContext.getInitialisationContext(), "BufferSizeKB", 16) * 1024;
+    static protected int pool_size   = config.get(RootContext.getInitialisationContext(), "PoolSize", 64);
+
+    static protected ConcurrentLinkedQueue<byte[]> pool       = new ConcurrentLinkedQueue<byte[]>();
+    static protected AtomicInteger                 pool_count = new AtomicInteger();
+
+    static protected byte[] acquireBuffer() {
+        byte[] buffer = pool.poll();
+        if (buffer == null) {
+            return new byte[buffer_size];
+        }
+        pool_count.decrementAndGet();
+        return buffer;
+    }
+
+    static protected void releaseBuffer(byte[] buffer) {
+        if (buffer.length != buffer_size) { return; }
+        if (pool_count.incrementAndGet() > pool_size) {
+            pool_count.decrementAndGet();
+            return;
+        }
+        pool.offer(buffer);
+    }
+
+    protected OutputStream        output_stream;
+    protected WritableByteChannel channel;
+    protected ByteBuffer          channel_buffer;
+    protected byte[]              buffer;
+    protected int                 position;
+    protected char                high_surrogate;
+    protected long                passed_on;
+    protected long                flushed_at;
+    protected int                 flush_threshold;
+
+    /**
+       Creates a sink that keeps its output in memory.
+    */
+    public JSONUTF8Sink (CallContext context) {
+        this.buffer = acquireBuffer();
+    }
+
+    public JSONUTF8Sink (CallContext context, OutputStream output_stream) {
+        this.output_stream = output_stream;
+        this.buffer        = acquireBuffer();
+    }
+
+    public JSONUTF8Sink (CallContext context, WritableByteChannel channel) {
+        this.channel        = channel;
+        this.buffer         = acquireBuffer();
+        this.channel_buffer = ByteBuffer.wrap(this.buffer);
+    }
+
+    /**
+       @param flush_threshold number of bytes after which the target stream
+                              is flushed, or 0 to leave flushing to the
+                              caller
+    */
+    public void setFlushThreshold(int flush_threshold) {
+        this.flush_threshold = flush_threshold;
+    }
+
+    public int getFlushThreshold() {
+        return this.flush_threshold;
+    }
+
+    protected boolean hasTarget() {
+        return this.output_stream != null || this.channel != null;
+    }
+
+    /**
+       Makes room for at least count bytes, either by passing the buffer on
+       to the target or, in memory, by growing it.
+    */
+    protected void ensureCapacity(int count) throws IOException {
+        if (this.position + count <= this.buffer.length) { return; }
+        if (this.hasTarget()) {
+            this.flushBuffer();
+            if (count <= this.buffer.length) { return; }
+        }
+        int length = Math.max(this.buffer.length * 2, this.position + count);
+        byte[] grown = java.util.Arrays.copyOf(this.buffer, length);
+        releaseBuffer(this.buffer);
+        this.buffer = grown;
+        if (this.channel != null) {
+            this.channel_buffer = ByteBuffer.wrap(this.buffer);
+        }
+    }
+
+    protected void flushBuffer() throws IOException {
+        if (this.position == 0) { return; }
+        if (this.output_stream != null) {
+            this.output_stream.write(this.buffer, 0, this.position);
+        } else if (this.channel != null) {
+            this.channel_buffer.clear();
+            this.channel_buffer.limit(this.position);
+            while (this.channel_buffer.hasRemaining()) {
+                this.channel.write(this.channel_buffer);
+            }
+        } else {
+            return;
+        }
+        this.passed_on += this.position;
+        this.position = 0;
+        this.checkFlushThreshold();
+    }
+
+    protected void checkFlushThreshold() throws IOException {
+        if (this.flush_threshold > 0 && this.output_stream != null && this.passed_on - this.flushed_at >= this.flush_threshold) {
+            this.output_stream.flush();
+            this.flushed_at = this.passed_on;
+        }
+    }
+
+    /**
+       Writes already encoded bytes.
+    */
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        this.flushSurrogate();
+        if (length > this.buffer.length && this.hasTarget()) {
+            this.flushBuffer();
+            if (this.output_stream != null) {
+                this.output_stream.write(bytes, offset, length);
+            } else {
+                ByteBuffer wrapped = ByteBuffer.wrap(bytes, offset, length);
+                while (wrapped.hasRemaining()) {
+                    this.channel.write(wrapped);
+                }
+            }
+            this.passed_on += length;
+            this.checkFlushThreshold();
+            return;
+        }
+        this.ensureCapacity(length);
+        System.arraycopy(bytes, offset, this.buffer, this.position, length);
+        this.position += length;
+    }
+
+    public void write(byte[] bytes) throws IOException {
+        this.write(bytes, 0, bytes.length);
+    }
+
+    /**
+       Copies the remaining content of the stream as is, reading directly
+       into the buffer. The stream is not closed.
+    */
+    public void transferFrom(InputStream input_stream) throws IOException {
+        this.flushSurrogate();
+        while (true) {
+            if (this.position == this.buffer.length) {
+                this.ensureCapacity(1);
+            }
+            int read = input_stream.read(this.buffer, this.position, this.buffer.length - this.position);
+            if (read == -1) { return; }
+            this.position += read;
+        }
+    }
+
+    /**
+       Copies count bytes of the file channel starting at position as is.
+       If the target is a channel, the bytes are passed on via
+       FileChannel.transferTo, which allows the operating system to copy
+       them without going through user space. Once transferTo makes no
+       progress, e.g. since the target is non blocking or the file has
+       shrunk, the rest is copied through the buffer.
+    */
+    public void transferFrom(FileChannel file_channel, long position, long count) throws IOException {
+        this.flushSurrogate();
+        if (this.channel != null) {
+            this.flushBuffer();
+            while (count > 0) {
+                long transferred = file_channel.transferTo(position, count, this.channel);
+                if (transferred <= 0) { break; }
+                position += transferred;
+                count    -= transferred;
+                this.passed_on += transferred;
+            }
+            this.checkFlushThreshold();
+            if (count == 0) { return; }
+        }
+        ByteBuffer wrapped = null;
+        while (count > 0) {
+            if (this.position == this.buffer.length) {
+                this.ensureCapacity(1);
+            }
+            if (wrapped == null || wrapped.array() != this.buffer) {
+                wrapped = ByteBuffer.wrap(this.buffer);
+            }
+            wrapped.limit((int) Math.min(this.buffer.length, this.position + count));
+            wrapped.position(this.position);
+            int read = file_channel.read(wrapped, position);
+            if (read == -1) { return; }
+            this.position += read;
+            position += read;
+            count -= read;
+        }
+    }
+
+    protected void flushSurrogate() throws IOException {
+        if (this.high_surrogate != 0) {
+            this.high_surrogate = 0;
+            this.ensureCapacity(1);
+            this.buffer[this.position++] = '?';
+        }
+    }
+
+    public JSONUTF8Sink append(char c) throws IOException {
+        if (c < 0x80 && this.high_surrogate == 0) {
+            if (this.position == this.buffer.length) { this.ensureCapacity(1); }
+            this.buffer[this.position++] = (byte) c;
+            return this;
+        }
+        this.encode(c);
+        return this;
+    }
+
+    public JSONUTF8Sink append(CharSequence sequence) throws IOException {
+        if (sequence == null) { sequence = "null"; }
+        return this.append(sequence, 0, sequence.length());
+    }
+
+    public JSONUTF8Sink append(CharSequence sequence, int start, int end) throws IOException {
+        if (sequence == null) { sequence = "null"; }
+        int i = start;
+        while (i < end) {
+            if (this.high_surrogate == 0) {
+                // copy a run of ASCII characters, as far as it fits into the buffer
+                if (this.position == this.buffer.length) { this.ensureCapacity(1); }
+                byte[] buffer = this.buffer;
+                int position  = this.position;
+                int limit     = Math.min(end, i + (buffer.length - position));
+                while (i < limit) {
+                    char c = sequence.charAt(i);
+                    if (c >= 0x80) { break; }
+                    buffer[position++] = (byte) c;
+                    i++;
+                }
+                this.position = position;
+                if (i == limit) { continue; }
+            }
+            this.encode(sequence.charAt(i++));
+        }
+        return this;
+    }
+
+    protected void encode(char c) throws IOException {
+        if (this.high_surrogate != 0) {
+            char high = this.high_surrogate;
+            this.high_surrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int code_point = Character.toCodePoint(high, c);
+                this.ensureCapacity(4);
+                this.buffer[this.position++] = (byte) (0xF0 | (code_point >> 18));
+                this.buffer[this.position++] = (byte) (0x80 | ((code_point >> 12) & 0x3F));
+                this.buffer[this.position++] = (byte) (0x80 | ((code_point >> 6) & 0x3F));
+                this.buffer[this.position++] = (byte) (0x80 | (code_point & 0x3F));
+                return;
+            }
+            this.ensureCapacity(1);
+            this.buffer[this.position++] = '?';
+        }
+        if (c < 0x80) {
+            this.ensureCapacity(1);
+            this.buffer[this.position++] = (byte) c;
+        } else if (c < 0x800) {
+            this.ensureCapacity(2);
+            this.buffer[this.position++] = (byte) (0xC0 | (c >> 6));
+            this.buffer[this.position++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            this.high_surrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            this.ensureCapacity(1);
+            this.buffer[this.position++] = '?';
+        } else {
+            this.ensureCapacity(3);
+            this.buffer[this.position++] = (byte) (0xE0 | (c >> 12));
+            this.buffer[this.position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            this.buffer[this.position++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    /**
+       @return the number of bytes written to this sink so far
+    */
+    public long getByteCount() {
+        return this.passed_on + this.position;
+    }
+
+    /**
+       @return the number of bytes held in memory, i.e. not yet passed on
+    */
+    public int size() {
+        return this.position;
+    }
+
+    public byte[] toByteArray() throws IOException {
+        this.flushSurrogate();
+        return java.util.Arrays.copyOf(this.buffer, this.position);
+    }
+
+    /**
+       Writes the bytes held in memory to the given stream.
+    */
+    public void writeTo(OutputStream output_stream) throws IOException {
+        this.flushSurrogate();
+        output_stream.write(this.buffer, 0, this.position);
+    }
+
+    /**
+       Passes all buffered bytes on to the target and flushes it; does
+       nothing for sinks without a target.
+    */
+    public void flush() throws IOException {
+        this.flushSurrogate();
+        this.flushBuffer();
+        if (this.output_stream != null) {
+            this.output_stream.flush();
+            this.flushed_at = this.passed_on;
+        }
+    }
+
+    /**
+       Discards the bytes not yet passed on and returns the buffer to the
+       pool, without flushing the target.
+
+       @return true if nothing has been passed on to the target so far
+    */
+    public boolean abort() {
+        if (this.buffer == null) { return this.passed_on == 0; }
+        releaseBuffer(this.buffer);
+        this.buffer         = null;
+        this.channel_buffer = null;
+        this.position       = 0;
+        this.high_surrogate = 0;
+        return this.passed_on == 0;
+    }
+
+    public void close() throws IOException {
+        if (this.buffer == null) { return; }
+        try {
+            if (this.hasTarget()) {
+                this.flush();
+            }
+        } finally {
+            releaseBuffer(this.buffer);
+            this.buffer         = null;
+            this.channel_buffer = null;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+
+import java.io.IOException;
+
+/**
+   Writes values of a certain type in JSONSerialiserImpl, see
+   JSONSerialiserImpl.registerWriter.
+
+   A writer is called after the separator and the name, if any, have been
+   written, and must produce exactly one JSON value, either directly via
+   JSONSerialiserImpl.getAppendable or by means of the serialiser's
+   openObject, openArray and serialise methods. Writers are shared between
+   threads and must not keep state.
+*/
+public interface JSONValueWriter {
+    public void write(CallContext context, JSONSerialiserImpl serialiser, Object object) throws IOException;
+}
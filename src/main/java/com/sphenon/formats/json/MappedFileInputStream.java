@@ -0,0 +1,113 @@
+package com.sphenon.formats.json;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+   Reads a regular file through read only memory mapped windows, so the
+   parser copies straight from the page cache into its own buffers without
+   read system calls or intermediate stream buffers. Files larger than a
+   window, in particular larger than 2 GB, are mapped window by window.
+*/
+public class MappedFileInputStream extends InputStream {
+
+    protected FileInputStream  file_input_stream;
+    protected FileChannel      channel;
+    protected long             size;
+    protected long             window_size;
+    protected long             window_position;
+    protected MappedByteBuffer window;
+
+    public MappedFileInputStream (File file, long window_size) throws IOException {
+        if (window_size <= 0 || window_size > Integer.MAX_VALUE) {
+            window_size = Integer.MAX_VALUE;
+        }
+        this.file_input_stream = new FileInputStream(file);
+        try {
+            this.channel         = this.file_input_stream.getChannel();
+            this.size            = this.channel.size();
+            this.window_size     = window_size;
+            this.window_position = 0;
+            this.window          = this.map(0);
+        } catch (IOException ioe) {
+            this.file_input_stream.close();
+            throw ioe;
+        }
+    }
+
+    protected MappedByteBuffer map(long position) throws IOException {
+        long length = Math.min(this.window_size, this.size - position);
+        return this.channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    /**
+       @return false if the end of the file is reached
+    */
+    protected boolean ensureAvailable() throws IOException {
+        if (this.window == null) {
+            throw new IOException("Stream closed");
+        }
+        if (this.window.hasRemaining()) {
+            return true;
+        }
+        long next = this.window_position + this.window.capacity();
+        if (next >= this.size) {
+            return false;
+        }
+        this.window_position = next;
+        this.window = this.map(next);
+        return this.window.hasRemaining();
+    }
+
+    public int read() throws IOException {
+        if (this.ensureAvailable() == false) { return -1; }
+        return this.window.get() & 0xFF;
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) { return 0; }
+        if (this.ensureAvailable() == false) { return -1; }
+        int count = Math.min(length, this.window.remaining());
+        this.window.get(buffer, offset, count);
+        return count;
+    }
+
+    public long skip(long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count && this.ensureAvailable()) {
+            int step = (int) Math.min(count - skipped, this.window.remaining());
+            this.window.position(this.window.position() + step);
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    public int available() throws IOException {
+        if (this.window == null) { return 0; }
+        long remaining = this.size - this.window_position - this.window.position();
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    public void close() throws IOException {
+        this.window = null;
+        this.file_input_stream.close();
+    }
+}
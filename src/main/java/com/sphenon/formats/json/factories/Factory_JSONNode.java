@@ -39,7 +39,42 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
+/**
+   @configuration com.sphenon.formats.json.factories.Factory_JSONNode.LazyParsing if true, JSON from files,
+                                                                                 tree leafs, java resources and
+                                                                                 media objects is parsed on first
+                                                                                 access, see JSONNodeLazy
+   @configuration com.sphenon.formats.json.factories.Factory_JSONNode.DocumentCacheMaxWeightKB if greater than 0,
+                                                                                 parsed documents from files and
+                                                                                 timestamped media objects are
+                                                                                 cached up to this total source
+                                                                                 size, see JSONDocumentCache;
+                                                                                 cached documents are always
+                                                                                 parsed eagerly and read only
+                                                                                 (default 0)
+*/
 public class Factory_JSONNode {
+    static final public Class _class = Factory_JSONNode.class;
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected boolean lazy_parsing = config.get(RootContext.getInitialisationContext(), "LazyParsing", false);
+
+    static protected JSONDocumentCache document_cache;
+    static {
+        long max_weight_kb = config.get(RootContext.getInitialisationContext(), "DocumentCacheMaxWeightKB", 0);
+        if (max_weight_kb > 0) {
+            document_cache = new JSONDocumentCache(RootContext.getInitialisationContext(), max_weight_kb * 1024L);
+        }
+    };
+
+    /**
+       @return the document cache, or null if caching is disabled
+    */
+    static public JSONDocumentCache getDocumentCache(CallContext context) {
+        return document_cache;
+    }
 
     public Factory_JSONNode (CallContext context) {
     }
@@ -75,6 +110,24 @@ public class Factory_JSONNode {
     }
 
     static protected JSONNode constructByObject(CallContext context, Object object, Object info) {
+        if (document_cache != null) {
+            Object source = object;
+            if (object instanceof TreeLeaf || object instanceof JavaResource) {
+                source = getMediaObject(context, object, info);
+            }
+            JSONNode json_node = document_cache.get(context, source, info);
+            if (json_node != null) {
+                return json_node;
+            }
+        }
+
+        if (lazy_parsing) {
+            JSONNode json_node = constructLazilyByObject(context, object, info);
+            if (json_node != null) {
+                return json_node;
+            }
+        }
+
         InputStream input_stream = null;
 
         try {
@@ -133,4 +186,41 @@ public class Factory_JSONNode {
             throw (ExceptionPreConditionViolation) null; // compiler insists
         }
     }
+
+    /**
+       Creates a JSONNodeLazy for sources that can be read later on.
+
+       @return the node, or null if object is not such a source
+    */
+    static protected JSONNode constructLazilyByObject(CallContext context, Object object, Object info) {
+        if (object instanceof File) {
+            if (((File) object).isFile() == false) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "File denoted by locator '%(locator)' does not exist", "locator", info);
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+            return new JSONNodeLazy(context, (File) object);
+        }
+        if (object instanceof TreeLeaf || object instanceof JavaResource) {
+            return new JSONNodeLazy(context, getMediaObject(context, object, info));
+        }
+        if (object instanceof Data_MediaObject) {
+            return new JSONNodeLazy(context, (Data_MediaObject) object);
+        }
+        return null;
+    }
+
+    /**
+       Retrieves the data of a TreeLeaf or JavaResource.
+    */
+    static protected Data_MediaObject getMediaObject(CallContext context, Object object, Object info) {
+        if (object instanceof JavaResource) {
+            try {
+                object = Factory_TreeNode_JavaResource.construct(context, ((JavaResource) object));
+            } catch (ValidationFailure vf) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, vf, "Creation of java resource based locator '%(locator)' failed", "locator", info);
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+        }
+        return ((Data_MediaObject)(((NodeContent_Data)(((TreeLeaf) object).getContent(context))).getData(context)));
+    }
 }
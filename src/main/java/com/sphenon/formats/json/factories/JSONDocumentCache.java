@@ -0,0 +1,258 @@
+package com.sphenon.formats.json.factories;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.locating.*;
+import com.sphenon.basics.data.*;
+
+import com.sphenon.formats.json.*;
+import com.sphenon.formats.json.returncodes.*;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   Bounded cache of parsed JSON documents, used by Factory_JSONNode.
+
+   Documents are keyed by their resolved location: the absolute file for
+   file based sources, the full text locator for other media objects
+   retrieved via a Locator and the Location itself, compared by its
+   equals, for those retrieved via a Location. An entry is valid as long
+   as the modification time and length of the file, or the last update
+   timestamp of the media object, are unchanged. Media objects without
+   such a timestamp are not cached.
+
+   The weight of an entry is the size of its source in bytes. If the total
+   weight exceeds the maximum, the least recently used entries are evicted.
+   Parsing takes place outside of the lock, so concurrent misses for the
+   same document may parse it more than once.
+
+   The cache holds read only copies of the parsed trees, see
+   JSONReadOnlyNodes, and no CallContext; each call returns a new
+   JSONNode, created with the caller's context, around the shared tree.
+*/
+public class JSONDocumentCache {
+    static final public Class _class = JSONDocumentCache.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected class Entry {
+        protected JsonNode node;
+        protected long     modification;
+        protected long     length;
+        protected long     weight;
+    }
+
+    protected long                          max_weight;
+    protected long                          total_weight;
+    protected LinkedHashMap<Object,Entry>   entries;
+
+    protected AtomicLong hits          = new AtomicLong();
+    protected AtomicLong misses        = new AtomicLong();
+    protected AtomicLong invalidations = new AtomicLong();
+    protected AtomicLong evictions     = new AtomicLong();
+
+    public JSONDocumentCache (CallContext context, long max_weight) {
+        this.max_weight = max_weight;
+        this.entries    = new LinkedHashMap<Object,Entry>(64, 0.75f, true);
+    }
+
+    /**
+       Retrieves the document from the cache, parsing and adding it if
+       necessary.
+
+       @param source a File or Data_MediaObject
+       @param info   the Locator or Location the source was retrieved from
+       @return the document, read only, or null if the source is not cacheable
+    */
+    public JSONNode get(CallContext context, Object source, Object info) {
+        File   file = null;
+        Object key;
+        long   modification;
+        long   length;
+
+        if (source instanceof Data_MediaObject_File) {
+            file = (File) ((Data_MediaObject_File) source).getCurrentFile(context);
+        } else if (source instanceof File) {
+            file = (File) source;
+        }
+
+        if (file != null) {
+            key          = file.getAbsoluteFile();
+            modification = file.lastModified();
+            length       = file.length();
+            if (modification == 0L) {
+                // does not exist or cannot be accessed, leave reporting to the caller
+                return null;
+            }
+        } else if (source instanceof Data_MediaObject && (info instanceof Locator || info instanceof Location)) {
+            Date last_update = ((Data_MediaObject) source).getLastUpdate(context);
+            if (last_update == null) {
+                return null;
+            }
+            key          = (info instanceof Locator ? ((Locator) info).getTextLocator(context) : info);
+            modification = last_update.getTime();
+            length       = -1L;
+        } else {
+            return null;
+        }
+
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(key);
+            if (entry != null) {
+                if (entry.modification == modification && entry.length == length) {
+                    this.hits.incrementAndGet();
+                    return new JSONNode(context, entry.node);
+                }
+                this.entries.remove(key);
+                this.total_weight -= entry.weight;
+                this.invalidations.incrementAndGet();
+                if ((notification_level & Notifier.DIAGNOSTICS) != 0) { CustomaryContext.create((Context)context).sendTrace(context, Notifier.DIAGNOSTICS, "Cached JSON document '%(key)' changed, reloading", "key", key); }
+            }
+        }
+        this.misses.incrementAndGet();
+
+        Entry entry = new Entry();
+        entry.modification = modification;
+        entry.length       = length;
+        try {
+            JSONNode json_node;
+            if (file != null) {
+                json_node    = JSONNode.createJSONNode(context, file);
+                entry.weight = length;
+            } else {
+                CountingInputStream input_stream = new CountingInputStream(((Data_MediaObject) source).getStream(context));
+                json_node    = JSONNode.createJSONNode(context, input_stream);
+                entry.weight = input_stream.getCount();
+            }
+            entry.node = JSONReadOnlyNodes.freeze(context, json_node.getFirstNode(context));
+        } catch (InvalidJSON ij) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, ij, "Could not parse json denoted by locator '%(locator)'", "locator", info);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+
+        if (entry.weight > this.max_weight) {
+            return new JSONNode(context, entry.node);
+        }
+
+        synchronized (this.entries) {
+            Entry previous = this.entries.put(key, entry);
+            if (previous != null) {
+                this.total_weight -= previous.weight;
+            }
+            this.total_weight += entry.weight;
+            Iterator<Map.Entry<Object,Entry>> iterator = this.entries.entrySet().iterator();
+            while (this.total_weight > this.max_weight && iterator.hasNext()) {
+                Map.Entry<Object,Entry> eldest = iterator.next();
+                if (eldest.getValue() == entry) { continue; }
+                iterator.remove();
+                this.total_weight -= eldest.getValue().weight;
+                this.evictions.incrementAndGet();
+            }
+        }
+        return new JSONNode(context, entry.node);
+    }
+
+    public void clear(CallContext context) {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.total_weight = 0;
+        }
+    }
+
+    public long getHits(CallContext context) {
+        return this.hits.get();
+    }
+
+    public long getMisses(CallContext context) {
+        return this.misses.get();
+    }
+
+    public long getInvalidations(CallContext context) {
+        return this.invalidations.get();
+    }
+
+    public long getEvictions(CallContext context) {
+        return this.evictions.get();
+    }
+
+    public int getSize(CallContext context) {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public long getWeight(CallContext context) {
+        synchronized (this.entries) {
+            return this.total_weight;
+        }
+    }
+
+    public long getMaxWeight(CallContext context) {
+        return this.max_weight;
+    }
+
+    public String toString() {
+        return "JSONDocumentCache[entries: " + this.getSize(null) + ", weight: " + this.getWeight(null) + "/" + this.max_weight
+             + ", hits: " + this.hits.get() + ", misses: " + this.misses.get()
+             + ", invalidations: " + this.invalidations.get() + ", evictions: " + this.evictions.get() + "]";
+    }
+
+    static protected class CountingInputStream extends FilterInputStream {
+        protected long count;
+
+        protected CountingInputStream(InputStream input_stream) {
+            super(input_stream);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) { this.count++; }
+            return b;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) { this.count += read; }
+            return read;
+        }
+
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            this.count += skipped;
+            return skipped;
+        }
+
+        protected long getCount() {
+            return this.count;
+        }
+    }
+}
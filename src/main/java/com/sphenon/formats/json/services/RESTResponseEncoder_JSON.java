@@ -27,7 +27,59 @@ import com.sphenon.server.ws.*;
 
 import com.sphenon.formats.json.*;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+   Encodes responses as JSON, wrapped within an object as member "data".
+
+   encodeResponse(context, data) returns the complete response as a
+   String; encodeResponse(context, data, target) streams it UTF-8 encoded
+   to the target while serialising, so the first bytes are sent before
+   the data is serialised completely and the response is never held in
+   memory as a whole.
+
+   When streaming, the response is compressed with gzip or deflate if the
+   client accepts it and the body exceeds a minimum size, see
+   RESTResponseOutputStream.
+
+   With ETags enabled, streamed responses carry a strong ETag, the SHA-256
+   of the uncompressed body, suffixed with the content encoding if the
+   body is compressed. Since the header has to precede the body, the data
+   is then serialised once into memory, hashed and, unless the ETag
+   matches If-None-Match and "304 Not Modified" is sent without a body,
+   written to the response from there; so with ETags the complete body is
+   held in memory and only sent once it is complete. Serialising twice
+   instead would consume data that can be iterated only once, like
+   cursors, and tag content other than the one sent.
+
+   @configuration com.sphenon.formats.json.services.RESTResponseEncoder_JSON.FlushThresholdKB when streaming, the
+                  response stream is flushed each time this amount has been written, 0 leaves flushing to
+                  the stream (default 64)
+   @configuration com.sphenon.formats.json.services.RESTResponseEncoder_JSON.Compression if false, streamed
+                  responses are never compressed (default true)
+   @configuration com.sphenon.formats.json.services.RESTResponseEncoder_JSON.CompressionMinimumSizeKB bodies up to
+                  this size are sent uncompressed (default 1)
+   @configuration com.sphenon.formats.json.services.RESTResponseEncoder_JSON.CompressionLevel deflate level,
+                  1 (fastest) to 9 (smallest) (default 6)
+   @configuration com.sphenon.formats.json.services.RESTResponseEncoder_JSON.ETags if true, streamed responses
+                  carry an ETag and conditional requests are answered with "304 Not Modified"; the body is then
+                  held in memory before it is sent (default false)
+*/
 public class RESTResponseEncoder_JSON implements RESTResponseEncoder {
+    static final public Class _class = RESTResponseEncoder_JSON.class;
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected int     flush_threshold          = config.get(RootContext.getInitialisationContext(), "FlushThresholdKB", 64) * 1024;
+    static protected boolean compression              = config.get(RootContext.getInitialisationContext(), "Compression", true);
+    static protected int     compression_minimum_size = config.get(RootContext.getInitialisationContext(), "CompressionMinimumSizeKB", 1) * 1024;
+    static protected int     compression_level        = config.get(RootContext.getInitialisationContext(), "CompressionLevel", 6);
+    static protected boolean etags                    = config.get(RootContext.getInitialisationContext(), "ETags", false);
 
     public RESTResponseEncoder_JSON(CallContext context) {
     }
@@ -63,4 +115,147 @@ public class RESTResponseEncoder_JSON implements RESTResponseEncoder {
             throw (ExceptionConfigurationError) null; // compiler insists
         }
     }
+
+    /**
+       Computes the SHA-256 of everything written to it, discarding the
+       bytes themselves.
+    */
+    static protected class DigestOutputStream extends OutputStream {
+        protected MessageDigest digest;
+        protected long          count;
+
+        public DigestOutputStream() throws NoSuchAlgorithmException {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        }
+
+        public void write(int b) {
+            this.digest.update((byte) b);
+            this.count++;
+        }
+
+        public void write(byte[] bytes, int offset, int length) {
+            this.digest.update(bytes, offset, length);
+            this.count += length;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+           @param content_encoding encoding of the body as sent, or null
+        */
+        public String getETag(String content_encoding) {
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(this.digest.digest())
+                        + (content_encoding == null ? "" : ("-" + content_encoding)) + "\"";
+        }
+    }
+
+    /**
+       @return the response for data, UTF-8 encoded in memory; the caller
+               has to close the sink
+    */
+    static protected JSONUTF8Sink serialiseToSink(CallContext context, Object data) throws IOException {
+        JSONUTF8Sink sink = new JSONUTF8Sink(context);
+        try {
+            JSONSerialiserImpl.serialise(context, (Appendable) sink, data, "json-wrap-within", "data");
+        } catch (IOException | RuntimeException | Error e) {
+            sink.abort();
+            throw e;
+        }
+        return sink;
+    }
+
+    /**
+       @return the strong ETag of the uncompressed response for data, as
+               sent by encodeResponse(context, data, target)
+    */
+    public String computeETag(CallContext context, Object data) {
+        try {
+            JSONUTF8Sink sink = serialiseToSink(context, data);
+            try {
+                DigestOutputStream digest = new DigestOutputStream();
+                sink.writeTo(digest);
+                return digest.getETag(null);
+            } finally {
+                sink.close();
+            }
+        } catch (Throwable t) {
+            CustomaryContext.create((Context)context).throwConfigurationError(context, t, "Could not serialise '%(data)' to JSON", "data", data);
+            throw (ExceptionConfigurationError) null; // compiler insists
+        }
+    }
+
+    /**
+       @param if_none_match value of the If-None-Match request header, or null
+       @return true if the header lists etag or is "*"; weak tags match,
+               too, as required for If-None-Match
+    */
+    static public boolean matchesETag(CallContext context, String if_none_match, String etag) {
+        if (if_none_match == null) { return false; }
+        for (String entry : if_none_match.split(",")) {
+            entry = entry.trim();
+            if (entry.startsWith("W/")) {
+                entry = entry.substring(2);
+            }
+            if (entry.equals("*") || entry.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+       Writes the response to the target; all headers are set before the
+       first byte is written. If serialisation fails, the buffered part of
+       the response is discarded and a compressed body is left unfinished,
+       so it cannot be mistaken for a complete one; only if the sink had
+       passed bytes on before, parts of the response may have been sent
+       already, otherwise nothing has been written and the caller can
+       still send an error response.
+    */
+    public void encodeResponse(CallContext context, Object data, RESTResponseTarget target) {
+        RESTResponseOutputStream response = null;
+        JSONUTF8Sink sink = null;
+        try {
+            String content_encoding = null;
+            if (compression) {
+                target.setHeader(context, "Vary", "Accept-Encoding");
+                content_encoding = RESTResponseOutputStream.selectContentEncoding(context, target.getRequestHeader(context, "Accept-Encoding"));
+            }
+            if (etags) {
+                JSONUTF8Sink body = serialiseToSink(context, data);
+                try {
+                    DigestOutputStream digest = new DigestOutputStream();
+                    body.writeTo(digest);
+                    // same decision as in RESTResponseOutputStream, which compresses only beyond the minimum size
+                    String etag = digest.getETag(digest.getCount() > compression_minimum_size ? content_encoding : null);
+                    target.setHeader(context, "ETag", etag);
+                    if (matchesETag(context, target.getRequestHeader(context, "If-None-Match"), etag)) {
+                        target.setStatus(context, 304);
+                        return;
+                    }
+                    target.setHeader(context, "Content-Type", "application/json; charset=UTF-8");
+                    response = new RESTResponseOutputStream(context, target, content_encoding, compression_minimum_size, compression_level);
+                    body.writeTo(response);
+                    response.close();
+                    return;
+                } finally {
+                    body.close();
+                }
+            }
+            target.setHeader(context, "Content-Type", "application/json; charset=UTF-8");
+            response = new RESTResponseOutputStream(context, target, content_encoding, compression_minimum_size, compression_level);
+            sink = new JSONUTF8Sink(context, response);
+            sink.setFlushThreshold(flush_threshold);
+            JSONSerialiserImpl.serialise(context, sink, data, "json-wrap-within", "data");
+            sink.close();
+            response.close();
+        } catch (Throwable t) {
+            if (sink != null) { sink.abort(); }
+            if (response != null) { response.abort(); }
+            CustomaryContext.create((Context)context).throwConfigurationError(context, t, "Could not serialise '%(data)' to JSON", "data", data);
+            throw (ExceptionConfigurationError) null; // compiler insists
+        }
+    }
 }
@@ -0,0 +1,291 @@
+package com.sphenon.formats.json.services;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.configuration.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+   The body of a response, optionally compressed with gzip or deflate.
+
+   The first minimum_size bytes are held back; if the body turns out to be
+   smaller, it is sent uncompressed once the stream is closed, since
+   compression would not pay off. Otherwise the Content-Encoding header is
+   set and everything is compressed on the fly, directly from the bytes
+   passed to write into the response stream.
+
+   Deflaters, together with their output buffer, are taken from a bounded,
+   process wide pool. close() finishes the body and returns the deflater,
+   it does not close the response stream. abort() returns the deflater
+   without finishing the body, so that a truncated body does not end in
+   a valid gzip trailer. flush() passes on all data
+   written so far, compressed with a sync flush; before the decision is
+   made it does nothing.
+
+   @configuration com.sphenon.formats.json.services.RESTResponseOutputStream.PoolSize maximum number of pooled
+                                                                                       deflaters per encoding
+                                                                                       (default 32)
+*/
+public class RESTResponseOutputStream extends OutputStream {
+    static final public Class _class = RESTResponseOutputStream.class;
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class.getName()); };
+
+    static protected int pool_size = config.get(RootContext.getInitialisationContext(), "PoolSize", 32);
+
+    static protected final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    static protected class Compressor {
+        protected Deflater deflater;
+        protected byte[]   buffer;
+
+        protected Compressor(boolean gzip) {
+            // gzip has its own header and trailer around the raw deflate data
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+            this.buffer   = new byte[8192];
+        }
+    }
+
+    static protected ConcurrentLinkedQueue<Compressor> gzip_pool     = new ConcurrentLinkedQueue<Compressor>();
+    static protected ConcurrentLinkedQueue<Compressor> deflate_pool  = new ConcurrentLinkedQueue<Compressor>();
+    static protected AtomicInteger                     gzip_count    = new AtomicInteger();
+    static protected AtomicInteger                     deflate_count = new AtomicInteger();
+
+    static protected Compressor acquireCompressor(boolean gzip, int level) {
+        Compressor compressor = (gzip ? gzip_pool : deflate_pool).poll();
+        if (compressor == null) {
+            compressor = new Compressor(gzip);
+        } else {
+            (gzip ? gzip_count : deflate_count).decrementAndGet();
+        }
+        compressor.deflater.setLevel(level);
+        return compressor;
+    }
+
+    static protected void releaseCompressor(boolean gzip, Compressor compressor) {
+        if ((gzip ? gzip_count : deflate_count).incrementAndGet() > pool_size) {
+            (gzip ? gzip_count : deflate_count).decrementAndGet();
+            compressor.deflater.end();
+            return;
+        }
+        compressor.deflater.reset();
+        (gzip ? gzip_pool : deflate_pool).offer(compressor);
+    }
+
+    /**
+       @param accept_encoding value of the Accept-Encoding request header, or null
+       @return "gzip", "deflate" or null, if the client accepts neither;
+               gzip is preferred at equal quality
+    */
+    static public String selectContentEncoding(CallContext context, String accept_encoding) {
+        if (accept_encoding == null) { return null; }
+        float gzip = -1, deflate = -1, any = -1;
+        for (String entry : accept_encoding.split(",")) {
+            String coding = entry;
+            float  q      = 1;
+            int semicolon = entry.indexOf(';');
+            if (semicolon != -1) {
+                coding = entry.substring(0, semicolon);
+                String parameter = entry.substring(semicolon + 1).trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(parameter.substring(2).trim());
+                    } catch (NumberFormatException nfe) {
+                        q = 0;
+                    }
+                }
+            }
+            coding = coding.trim().toLowerCase();
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = q;
+            } else if (coding.equals("deflate")) {
+                deflate = q;
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip    == -1) { gzip    = any; }
+        if (deflate == -1) { deflate = any; }
+        if (gzip > 0 && gzip >= deflate) { return "gzip"; }
+        if (deflate > 0) { return "deflate"; }
+        return null;
+    }
+
+    protected CallContext        context;
+    protected RESTResponseTarget target;
+    protected String             content_encoding;
+    protected boolean            gzip;
+    protected int                level;
+    protected OutputStream       output_stream;
+    protected byte[]             held_back;
+    protected int                held_back_count;
+    protected Compressor         compressor;
+    protected CRC32              crc;
+    protected boolean            compressed;
+    protected boolean            closed;
+
+    /**
+       @param content_encoding "gzip", "deflate" or null for no compression
+       @param minimum_size     size up to which the body is sent uncompressed
+       @param level            compression level, 0-9
+    */
+    public RESTResponseOutputStream (CallContext context, RESTResponseTarget target, String content_encoding, int minimum_size, int level) {
+        this.context          = context;
+        this.target           = target;
+        this.content_encoding = content_encoding;
+        this.gzip             = "gzip".equals(content_encoding);
+        this.level            = level;
+        if (content_encoding != null) {
+            this.held_back = new byte[minimum_size];
+        }
+    }
+
+    /**
+       @return the encoding actually used, or null if the body is sent
+               uncompressed; final only after the stream is closed
+    */
+    public String getContentEncoding() {
+        return (this.compressed ? this.content_encoding : null);
+    }
+
+    protected OutputStream getOutputStream() throws IOException {
+        if (this.output_stream == null) {
+            this.output_stream = this.target.getOutputStream(this.context);
+        }
+        return this.output_stream;
+    }
+
+    protected void startCompression() throws IOException {
+        this.target.setHeader(this.context, "Content-Encoding", this.content_encoding);
+        this.compressor = acquireCompressor(this.gzip, this.level);
+        this.compressed = true;
+        if (this.gzip) {
+            this.crc = new CRC32();
+            this.getOutputStream().write(GZIP_HEADER);
+        }
+        this.deflate(this.held_back, 0, this.held_back_count);
+        this.held_back = null;
+    }
+
+    protected void deflate(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) { return; }
+        if (this.crc != null) {
+            this.crc.update(bytes, offset, length);
+        }
+        Deflater deflater = this.compressor.deflater;
+        deflater.setInput(bytes, offset, length);
+        while ( ! deflater.needsInput()) {
+            this.drain(Deflater.NO_FLUSH);
+        }
+    }
+
+    protected int drain(int mode) throws IOException {
+        byte[] buffer = this.compressor.buffer;
+        int count = this.compressor.deflater.deflate(buffer, 0, buffer.length, mode);
+        if (count > 0) {
+            this.getOutputStream().write(buffer, 0, count);
+        }
+        return count;
+    }
+
+    public void write(int b) throws IOException {
+        this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (this.compressor != null) {
+            this.deflate(bytes, offset, length);
+        } else if (this.held_back == null) {
+            this.getOutputStream().write(bytes, offset, length);
+        } else if (this.held_back_count + length <= this.held_back.length) {
+            System.arraycopy(bytes, offset, this.held_back, this.held_back_count, length);
+            this.held_back_count += length;
+        } else {
+            this.startCompression();
+            this.deflate(bytes, offset, length);
+        }
+    }
+
+    public void flush() throws IOException {
+        if (this.compressor != null) {
+            while (this.drain(Deflater.SYNC_FLUSH) == this.compressor.buffer.length) {
+            }
+        } else if (this.held_back != null) {
+            return;
+        }
+        this.getOutputStream().flush();
+    }
+
+    public void close() throws IOException {
+        if (this.closed) { return; }
+        this.closed = true;
+        if (this.compressor == null) {
+            if (this.held_back != null) {
+                this.getOutputStream().write(this.held_back, 0, this.held_back_count);
+                this.held_back = null;
+            }
+            this.getOutputStream().flush();
+            return;
+        }
+        try {
+            Deflater deflater = this.compressor.deflater;
+            deflater.finish();
+            while ( ! deflater.finished()) {
+                this.drain(Deflater.NO_FLUSH);
+            }
+            if (this.gzip) {
+                byte[] trailer = new byte[8];
+                writeIntLE(trailer, 0, (int) this.crc.getValue());
+                writeIntLE(trailer, 4, (int) deflater.getBytesRead());
+                this.getOutputStream().write(trailer);
+            }
+            this.getOutputStream().flush();
+        } finally {
+            releaseCompressor(this.gzip, this.compressor);
+            this.compressor = null;
+        }
+    }
+
+    /**
+       Drops the held back bytes and returns the deflater without
+       finishing the compressed data or writing the gzip trailer; the
+       response stream is neither flushed nor closed.
+    */
+    public void abort() {
+        if (this.closed) { return; }
+        this.closed    = true;
+        this.held_back = null;
+        if (this.compressor != null) {
+            releaseCompressor(this.gzip, this.compressor);
+            this.compressor = null;
+        }
+    }
+
+    static protected void writeIntLE(byte[] bytes, int offset, int value) {
+        bytes[offset]     = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+}
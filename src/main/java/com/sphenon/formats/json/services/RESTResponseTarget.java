@@ -0,0 +1,42 @@
+package com.sphenon.formats.json.services;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+   The response a streaming RESTResponseEncoder writes to, typically an
+   adapter around a servlet request and response. Headers must be set
+   before the output stream is retrieved.
+*/
+public interface RESTResponseTarget {
+    /**
+       @return the value of the given header of the request, or null
+    */
+    public String getRequestHeader(CallContext context, String name);
+
+    public void setStatus(CallContext context, int status);
+
+    public void setHeader(CallContext context, String name, String value);
+
+    /**
+       @return the stream of the response body; the encoder flushes it,
+               but does not close it
+    */
+    public OutputStream getOutputStream(CallContext context) throws IOException;
+}